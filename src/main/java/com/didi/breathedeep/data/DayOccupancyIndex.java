@@ -0,0 +1,111 @@
+package com.didi.breathedeep.data
+
+/**
+ * Which local days have completed sessions, and how many minutes each.
+ *
+ * Days are grouped into fixed blocks of [BLOCK_DAYS] epoch days (about 17 months),
+ * each holding an occupancy bitset and a minutes array. Recording a session and
+ * looking up a day are both constant time, and filling a calendar month only
+ * touches the days shown, never the sessions themselves.
+ */
+class DayOccupancyIndex {
+    
+    private class Block {
+        val occupied = LongArray(BLOCK_DAYS / Long.SIZE_BITS)
+        val minutes = IntArray(BLOCK_DAYS)
+    }
+    
+    private val blocks = HashMap<Long, Block>()
+    
+    /**
+     * Number of days with at least one session
+     */
+    var occupiedDays: Int = 0
+        private set
+    
+    /**
+     * Adds minutes to a local epoch day and marks it occupied
+     */
+    fun add(epochDay: Long, minutes: Int) {
+        val block = blocks.getOrPut(blockOf(epochDay)) { Block() }
+        val day = dayInBlock(epochDay)
+        val word = day ushr 6
+        val bit = 1L shl (day and 63)
+        if (block.occupied[word] and bit == 0L) {
+            block.occupied[word] = block.occupied[word] or bit
+            occupiedDays++
+        }
+        block.minutes[day] += minutes
+    }
+    
+    /**
+     * Checks whether any session was completed on a local epoch day
+     */
+    fun isOccupied(epochDay: Long): Boolean {
+        val block = blocks[blockOf(epochDay)] ?: return false
+        val day = dayInBlock(epochDay)
+        return block.occupied[day ushr 6] and (1L shl (day and 63)) != 0L
+    }
+    
+    /**
+     * Minutes completed on a local epoch day
+     */
+    fun minutesOn(epochDay: Long): Int {
+        val block = blocks[blockOf(epochDay)] ?: return 0
+        return block.minutes[dayInBlock(epochDay)]
+    }
+    
+    /**
+     * Copies the minutes of [dayCount] consecutive days starting at [firstDay] into [out]
+     */
+    fun minutesBetween(firstDay: Long, dayCount: Int, out: IntArray = IntArray(dayCount)): IntArray {
+        var i = 0
+        while (i < dayCount) {
+            val epochDay = firstDay + i
+            val day = dayInBlock(epochDay)
+            // Copy the run of days that falls inside this block in one go
+            val run = minOf(dayCount - i, BLOCK_DAYS - day)
+            val block = blocks[blockOf(epochDay)]
+            if (block == null) {
+                out.fill(0, i, i + run)
+            } else {
+                System.arraycopy(block.minutes, day, out, i, run)
+            }
+            i += run
+        }
+        return out
+    }
+    
+    /**
+     * Calls [action] with every occupied day and its minutes, in no particular order
+     */
+    fun forEachDay(action: (epochDay: Long, minutes: Int) -> Unit) {
+        for ((blockIndex, block) in blocks) {
+            for (word in block.occupied.indices) {
+                var bits = block.occupied[word]
+                while (bits != 0L) {
+                    val day = word * Long.SIZE_BITS + java.lang.Long.numberOfTrailingZeros(bits)
+                    action(blockIndex * BLOCK_DAYS + day, block.minutes[day])
+                    bits = bits and (bits - 1)
+                }
+            }
+        }
+    }
+    
+    /**
+     * Removes every day
+     */
+    fun clear() {
+        blocks.clear()
+        occupiedDays = 0
+    }
+    
+    companion object {
+        private const val BLOCK_SHIFT = 9
+        private const val BLOCK_DAYS = 1 shl BLOCK_SHIFT
+        
+        private fun blockOf(epochDay: Long): Long = epochDay shr BLOCK_SHIFT
+        
+        private fun dayInBlock(epochDay: Long): Int = (epochDay and (BLOCK_DAYS - 1).toLong()).toInt()
+    }
+}
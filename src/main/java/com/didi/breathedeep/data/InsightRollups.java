@@ -0,0 +1,180 @@
+package com.didi.breathedeep.data
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.time.LocalDate
+
+/**
+ * Week, month and time-of-day rollups behind the insights dashboard.
+ *
+ * Each rollup is a bucket of minutes that a session adds to in constant time as it
+ * is written, so a dashboard query reads one value per bucket it shows and never
+ * touches sessions. Days are covered by the [DayOccupancyIndex] next to these.
+ */
+class InsightRollups {
+    
+    /**
+     * Sessions ever started, completed or not
+     */
+    var startedSessions: Int = 0
+        private set
+    
+    // Keyed by the epoch day of the week's Monday
+    private val minutesByWeek = HashMap<Long, Int>()
+    
+    // Keyed by year * 12 + zero-based month
+    private val minutesByMonth = HashMap<Int, Int>()
+    
+    private val minutesByHour = IntArray(HOURS_PER_DAY)
+    private val sessionsByHour = IntArray(HOURS_PER_DAY)
+    
+    /**
+     * Counts a session being started
+     */
+    fun recordStart() {
+        startedSessions++
+    }
+    
+    /**
+     * Adds a completed session's minutes to its week, month and starting hour
+     */
+    fun recordCompletion(epochDay: Long, hourOfDay: Int, minutes: Int) {
+        val week = weekStart(epochDay)
+        minutesByWeek[week] = (minutesByWeek[week] ?: 0) + minutes
+        val month = monthKey(epochDay)
+        minutesByMonth[month] = (minutesByMonth[month] ?: 0) + minutes
+        minutesByHour[hourOfDay] += minutes
+        sessionsByHour[hourOfDay]++
+    }
+    
+    /**
+     * Minutes in each of [count] consecutive weeks, the first being the one containing [epochDay]
+     */
+    fun weeklyMinutes(epochDay: Long, count: Int): IntArray {
+        val first = weekStart(epochDay)
+        return IntArray(count) { minutesByWeek[first + it * DAYS_PER_WEEK.toLong()] ?: 0 }
+    }
+    
+    /**
+     * Minutes in each of [count] consecutive months, the first being the one containing [epochDay]
+     */
+    fun monthlyMinutes(epochDay: Long, count: Int): IntArray {
+        val first = monthKey(epochDay)
+        return IntArray(count) { minutesByMonth[first + it] ?: 0 }
+    }
+    
+    /**
+     * Minutes by the local hour sessions started in, midnight first
+     */
+    fun minutesByHour(): IntArray = minutesByHour.copyOf()
+    
+    /**
+     * Completed sessions by the local hour they started in, midnight first
+     */
+    fun sessionsByHour(): IntArray = sessionsByHour.copyOf()
+    
+    /**
+     * Sets [startedSessions] directly, for a rebuild from the log
+     */
+    fun resetStarted(count: Int) {
+        startedSessions = count
+    }
+    
+    /**
+     * Removes every rollup
+     */
+    fun clear() {
+        startedSessions = 0
+        minutesByWeek.clear()
+        minutesByMonth.clear()
+        minutesByHour.fill(0)
+        sessionsByHour.fill(0)
+    }
+    
+    /**
+     * Appends the rollups to an aggregates snapshot
+     */
+    fun writeTo(out: DataOutputStream) {
+        out.writeInt(startedSessions)
+        for (hour in 0 until HOURS_PER_DAY) {
+            out.writeInt(minutesByHour[hour])
+            out.writeInt(sessionsByHour[hour])
+        }
+        out.writeInt(minutesByWeek.size)
+        for ((week, minutes) in minutesByWeek) {
+            out.writeLong(week)
+            out.writeInt(minutes)
+        }
+        out.writeInt(minutesByMonth.size)
+        for ((month, minutes) in minutesByMonth) {
+            out.writeInt(month)
+            out.writeInt(minutes)
+        }
+    }
+    
+    /**
+     * Reads rollups written by [writeTo]
+     */
+    fun readFrom(input: DataInputStream) {
+        startedSessions = input.readInt()
+        for (hour in 0 until HOURS_PER_DAY) {
+            minutesByHour[hour] = input.readInt()
+            sessionsByHour[hour] = input.readInt()
+        }
+        val weekCount = input.readInt()
+        for (i in 0 until weekCount) {
+            minutesByWeek[input.readLong()] = input.readInt()
+        }
+        val monthCount = input.readInt()
+        for (i in 0 until monthCount) {
+            minutesByMonth[input.readInt()] = input.readInt()
+        }
+    }
+    
+    companion object {
+        const val HOURS_PER_DAY = 24
+        private const val DAYS_PER_WEEK = 7
+        
+        /**
+         * Epoch day of the Monday starting the week that contains [epochDay]
+         */
+        fun weekStart(epochDay: Long): Long {
+            // Epoch day 0 was a Thursday
+            return epochDay - Math.floorMod(epochDay + 3, DAYS_PER_WEEK.toLong())
+        }
+        
+        private fun monthKey(epochDay: Long): Int {
+            val date = LocalDate.ofEpochDay(epochDay)
+            return date.year * 12 + date.monthValue - 1
+        }
+    }
+}
+
+/**
+ * Dashboard figures read from the rollups. Bucket arrays run oldest first; their
+ * first buckets start on the local epoch days [firstWeekStart] and [firstMonthStart].
+ */
+data class SessionInsights(
+    val firstWeekStart: Long,
+    val weeklyMinutes: IntArray,
+    val firstMonthStart: Long,
+    val monthlyMinutes: IntArray,
+    val minutesByHour: IntArray,
+    val sessionsByHour: IntArray,
+    val startedSessions: Int,
+    val completedSessions: Int,
+    val totalMinutes: Int
+) {
+    
+    /**
+     * Share of started sessions that were completed, 0 when none were started
+     */
+    val completionRate: Float
+        get() = if (startedSessions > 0) completedSessions.toFloat() / startedSessions else 0f
+    
+    /**
+     * Mean length of a completed session in minutes, 0 when none were completed
+     */
+    val averageSessionMinutes: Float
+        get() = if (completedSessions > 0) totalMinutes.toFloat() / completedSessions else 0f
+}
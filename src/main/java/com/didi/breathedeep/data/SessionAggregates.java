@@ -0,0 +1,247 @@
+package com.didi.breathedeep.data
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.time.Instant
+import java.time.LocalDate
+import java.time.ZoneId
+import java.util.concurrent.TimeUnit
+
+/**
+ * Materialized totals, streaks, per-day minutes and insight rollups derived from the session log.
+ *
+ * Each completed session is folded in with [record] in constant time, so completion
+ * cost does not depend on how much history exists. The raw log stays the source of
+ * truth: if the stored totals disagree with it, [rebuild] recomputes everything.
+ */
+class SessionAggregates(private val file: File) {
+    
+    var totalMinutes: Int = 0
+        private set
+    
+    var totalSessions: Int = 0
+        private set
+    
+    private val days = DayOccupancyIndex()
+    private val streaks = StreakEngine(days)
+    private val rollups = InsightRollups()
+    
+    val longestStreak: Int
+        get() = streaks.longest
+    
+    init {
+        load()
+    }
+    
+    /**
+     * Counts a newly started session, for the completion rate
+     */
+    fun recordStart() {
+        rollups.recordStart()
+    }
+    
+    /**
+     * Folds a newly completed session into the totals, streak, daily histogram and rollups
+     */
+    fun record(session: SessionData) {
+        if (!session.completed) return
+        
+        totalMinutes += session.durationMinutes
+        totalSessions++
+        
+        val localSeconds = localEpochSeconds(session)
+        val day = Math.floorDiv(localSeconds, DAY_SECONDS)
+        val hour = (Math.floorMod(localSeconds, DAY_SECONDS) / HOUR_SECONDS).toInt()
+        rollups.recordCompletion(day, hour, session.durationMinutes)
+        
+        val newDay = !days.isOccupied(day)
+        days.add(day, session.durationMinutes)
+        if (newDay) {
+            streaks.onDayAdded(day)
+        }
+    }
+    
+    /**
+     * Consecutive practice days ending today or yesterday; zero once a day has been missed
+     */
+    fun currentStreak(today: Long = epochDay(System.currentTimeMillis())): Int {
+        return streaks.currentStreak(today)
+    }
+    
+    /**
+     * Minutes completed on the given local epoch day
+     */
+    fun minutesOnDay(epochDay: Long): Int {
+        return days.minutesOn(epochDay)
+    }
+    
+    /**
+     * Minutes completed on each of [dayCount] consecutive local epoch days from [firstDay]
+     */
+    fun minutesBetween(firstDay: Long, dayCount: Int): IntArray {
+        return days.minutesBetween(firstDay, dayCount)
+    }
+    
+    /**
+     * Snapshot of the dashboard figures: [weeks] weeks and [months] months ending with
+     * the ones containing [today], plus the time-of-day distribution
+     */
+    fun insights(today: Long, weeks: Int, months: Int): SessionInsights {
+        val firstWeek = InsightRollups.weekStart(today) - (weeks - 1) * 7L
+        val firstMonth = LocalDate.ofEpochDay(today).withDayOfMonth(1).minusMonths((months - 1).toLong()).toEpochDay()
+        return SessionInsights(
+            firstWeekStart = firstWeek,
+            weeklyMinutes = rollups.weeklyMinutes(firstWeek, weeks),
+            firstMonthStart = firstMonth,
+            monthlyMinutes = rollups.monthlyMinutes(firstMonth, months),
+            minutesByHour = rollups.minutesByHour(),
+            sessionsByHour = rollups.sessionsByHour(),
+            startedSessions = rollups.startedSessions,
+            completedSessions = totalSessions,
+            totalMinutes = totalMinutes
+        )
+    }
+    
+    /**
+     * Checks whether the aggregates agree with the log, rebuilding them if not.
+     * Returns true if a rebuild was needed.
+     */
+    fun verify(completedCount: Int, startedCount: Int, sessions: () -> List<SessionData>): Boolean {
+        if (totalSessions == completedCount && rollups.startedSessions == startedCount) return false
+        rebuild(sessions(), startedCount)
+        return true
+    }
+    
+    /**
+     * Recomputes every aggregate from the given sessions; [startedCount] also counts
+     * started sessions that are no longer in the log
+     */
+    fun rebuild(sessions: List<SessionData>, startedCount: Int = sessions.size) {
+        reset(startedCount)
+        
+        // Sorted so that nearly every day arrives in order and takes the O(1) path
+        sessions.filter { it.completed }
+            .sortedBy { it.startTime }
+            .forEach { record(it) }
+    }
+    
+    /**
+     * Recomputes every aggregate in one pass over sessions supplied in any order, without
+     * holding them all in memory. Days arriving out of order cost a bounded streak rescan.
+     */
+    fun rebuild(startedCount: Int, forEachSession: ((SessionData) -> Unit) -> Unit) {
+        reset(startedCount)
+        forEachSession { record(it) }
+    }
+    
+    private fun reset(startedCount: Int) {
+        totalMinutes = 0
+        totalSessions = 0
+        streaks.clear()
+        days.clear()
+        rollups.clear()
+        rollups.resetStarted(startedCount)
+    }
+    
+    /**
+     * Writes the aggregates to disk, replacing the previous snapshot atomically
+     */
+    fun save() {
+        val tempFile = File(file.parentFile, file.name + TEMP_SUFFIX)
+        FileOutputStream(tempFile).use { fileOut ->
+            val out = DataOutputStream(fileOut.buffered())
+            out.writeInt(MAGIC)
+            out.writeInt(totalMinutes)
+            out.writeInt(totalSessions)
+            out.writeInt(streaks.runLength)
+            out.writeInt(streaks.longest)
+            out.writeLong(streaks.lastDay)
+            out.writeInt(days.occupiedDays)
+            days.forEachDay { day, minutes ->
+                out.writeLong(day)
+                out.writeInt(minutes)
+            }
+            rollups.writeTo(out)
+            out.flush()
+            fileOut.fd.sync()
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete()
+            throw IOException("Could not replace ${file.name}")
+        }
+    }
+    
+    /**
+     * Reads the last saved snapshot; a missing or corrupt file leaves everything at zero
+     * so that the next [verify] triggers a rebuild
+     */
+    private fun load() {
+        if (!file.exists()) return
+        try {
+            DataInputStream(FileInputStream(file).buffered()).use { input ->
+                if (input.readInt() != MAGIC) return
+                totalMinutes = input.readInt()
+                totalSessions = input.readInt()
+                val runLength = input.readInt()
+                val longest = input.readInt()
+                streaks.restore(input.readLong(), runLength, longest)
+                val dayCount = input.readInt()
+                for (i in 0 until dayCount) {
+                    days.add(input.readLong(), input.readInt())
+                }
+                rollups.readFrom(input)
+            }
+        } catch (e: IOException) {
+            totalMinutes = 0
+            totalSessions = 0
+            streaks.clear()
+            days.clear()
+            rollups.clear()
+        }
+    }
+    
+    companion object {
+        // Older snapshots ("BDAG", "BDA2") lack the session's own zone or the rollups; they are rebuilt
+        private const val MAGIC = 0x42444133 // "BDA3"
+        private const val TEMP_SUFFIX = ".tmp"
+        
+        private val DAY_SECONDS = TimeUnit.DAYS.toSeconds(1)
+        private val HOUR_SECONDS = TimeUnit.HOURS.toSeconds(1)
+        
+        /**
+         * Local calendar day number (days since 1970-01-01) for a timestamp in the device's current zone
+         */
+        fun epochDay(timeMillis: Long): Long {
+            return Instant.ofEpochMilli(timeMillis).atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay()
+        }
+        
+        /**
+         * Local calendar day a session belongs to, in the zone it was started in. Sessions
+         * recorded before zone offsets were stored fall back to the current zone's rules,
+         * which still get DST right for a user who has not moved.
+         */
+        fun epochDay(session: SessionData): Long {
+            return Math.floorDiv(localEpochSeconds(session), DAY_SECONDS)
+        }
+        
+        /**
+         * A session's start as seconds since 1970-01-01T00:00 on the local clock it was started by
+         */
+        private fun localEpochSeconds(session: SessionData): Long {
+            val offsetSeconds = session.zoneOffsetSeconds.takeIf { it != SessionData.UNKNOWN_ZONE_OFFSET }
+                ?: zoneOffsetSeconds(session.startTime)
+            return Math.floorDiv(session.startTime, 1000L) + offsetSeconds
+        }
+        
+        /**
+         * Offset from UTC of the device's current zone at a given time
+         */
+        fun zoneOffsetSeconds(timeMillis: Long): Int {
+            return ZoneId.systemDefault().rules.getOffset(Instant.ofEpochMilli(timeMillis)).totalSeconds
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.didi.breathedeep.data
+
+import java.io.BufferedReader
+import java.io.BufferedWriter
+import java.io.IOException
+import java.io.InputStream
+import java.io.InputStreamReader
+import java.io.PushbackInputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.Channels
+import java.nio.channels.ReadableByteChannel
+import java.nio.channels.WritableByteChannel
+
+/**
+ * File formats for backing up and moving session history
+ */
+enum class ArchiveFormat(val mimeType: String, val extension: String) {
+    /** One row per session, for spreadsheets and other apps */
+    CSV("text/csv", "csv"),
+    
+    /** The session log's own record format behind a short header; exact and compact */
+    BINARY("application/octet-stream", "bdx")
+}
+
+/**
+ * Streams sessions to and from archive files.
+ *
+ * Both directions go through a fixed-size buffer over an NIO channel, one session at a
+ * time, so memory use is the same for ten sessions or ten thousand. The binary form
+ * is the [SessionDataCodec] record layout behind a magic and record size:
+ * ```
+ *  0  int    magic "BDEX"
+ *  4  int    record size
+ *  8  ...    records, back to back
+ * ```
+ */
+object SessionArchive {
+    
+    private const val MAGIC = 0x42444558 // "BDEX"
+    private const val HEADER_SIZE = 8
+    private const val RECORD_BATCH = 256
+    private const val TEXT_BUFFER_SIZE = 64 * 1024
+    
+    private val CSV_HEADER = listOf(
+        "id",
+        "start_time",
+        "end_time",
+        "duration_minutes",
+        "completed",
+        "technique",
+        "breath_count",
+        "interruptions",
+        "zone_offset_seconds",
+        "active_seconds"
+    )
+    
+    /**
+     * Writes every session supplied by [forEachSession] to [channel]; returns how many were written
+     */
+    fun export(
+        format: ArchiveFormat,
+        channel: WritableByteChannel,
+        forEachSession: ((SessionData) -> Unit) -> Unit
+    ): Int {
+        return when (format) {
+            ArchiveFormat.CSV -> exportCsv(channel, forEachSession)
+            ArchiveFormat.BINARY -> exportBinary(channel, forEachSession)
+        }
+    }
+    
+    /**
+     * Reads an archive of either format from [channel], passing each session to [action].
+     * The format is told apart by the binary magic. The channel is read strictly forwards,
+     * so pipes and sockets work as well as files. Throws [SessionFormatException] for a
+     * malformed file.
+     */
+    fun import(channel: ReadableByteChannel, action: (SessionData) -> Unit) {
+        // Pushback lets a CSV file be parsed from its first byte without seeking back
+        val input = PushbackInputStream(Channels.newInputStream(channel), HEADER_SIZE)
+        val headerBytes = ByteArray(HEADER_SIZE)
+        var length = 0
+        while (length < HEADER_SIZE) {
+            val read = input.read(headerBytes, length, HEADER_SIZE - length)
+            if (read < 0) break
+            length += read
+        }
+        val header = ByteBuffer.wrap(headerBytes, 0, length).order(ByteOrder.BIG_ENDIAN)
+        if (length >= 4 && header.getInt(0) == MAGIC) {
+            if (length < HEADER_SIZE || header.getInt(4) != SessionDataCodec.RECORD_SIZE) {
+                throw SessionFormatException("Unsupported session archive record size")
+            }
+            importBinary(Channels.newChannel(input), action)
+        } else {
+            input.unread(headerBytes, 0, length)
+            importCsv(input, action)
+        }
+    }
+    
+    private fun exportBinary(channel: WritableByteChannel, forEachSession: ((SessionData) -> Unit) -> Unit): Int {
+        val buffer = ByteBuffer.allocate(SessionDataCodec.RECORD_SIZE * RECORD_BATCH).order(ByteOrder.BIG_ENDIAN)
+        buffer.putInt(MAGIC)
+        buffer.putInt(SessionDataCodec.RECORD_SIZE)
+        var count = 0
+        forEachSession { session ->
+            if (buffer.remaining() < SessionDataCodec.RECORD_SIZE) {
+                drain(channel, buffer)
+            }
+            SessionDataCodec.encode(session, buffer)
+            count++
+        }
+        drain(channel, buffer)
+        return count
+    }
+    
+    private fun importBinary(channel: ReadableByteChannel, action: (SessionData) -> Unit) {
+        val recordSize = SessionDataCodec.RECORD_SIZE
+        val buffer = ByteBuffer.allocate(recordSize * RECORD_BATCH).order(ByteOrder.BIG_ENDIAN)
+        while (true) {
+            val read = channel.read(buffer)
+            buffer.flip()
+            var offset = 0
+            while (buffer.limit() - offset >= recordSize) {
+                action(SessionDataCodec.decode(buffer, offset))
+                offset += recordSize
+            }
+            buffer.position(offset)
+            buffer.compact()
+            if (read < 0) break
+        }
+        if (buffer.position() != 0) {
+            throw SessionFormatException("Session archive ends in a partial record")
+        }
+    }
+    
+    private fun exportCsv(channel: WritableByteChannel, forEachSession: ((SessionData) -> Unit) -> Unit): Int {
+        val writer = BufferedWriter(Channels.newWriter(channel, Charsets.UTF_8.newEncoder(), -1), TEXT_BUFFER_SIZE)
+        writer.write(CSV_HEADER.joinToString(","))
+        writer.newLine()
+        var count = 0
+        forEachSession { session ->
+            writer.write(session.id)
+            writer.write(','.code)
+            writer.write(session.startTime.toString())
+            writer.write(','.code)
+            writer.write(session.endTime.toString())
+            writer.write(','.code)
+            writer.write(session.durationMinutes.toString())
+            writer.write(','.code)
+            writer.write(session.completed.toString())
+            writer.write(','.code)
+            writer.write(session.technique.toString())
+            writer.write(','.code)
+            writer.write(session.breathCount.toString())
+            writer.write(','.code)
+            writer.write(session.interruptions.toString())
+            writer.write(','.code)
+            if (session.zoneOffsetSeconds != SessionData.UNKNOWN_ZONE_OFFSET) {
+                writer.write(session.zoneOffsetSeconds.toString())
+            }
+            writer.write(','.code)
+            writer.write(session.activeSeconds.toString())
+            writer.newLine()
+            count++
+        }
+        // Flushes through to the channel; the caller owns and closes it
+        writer.flush()
+        return count
+    }
+    
+    private fun importCsv(input: InputStream, action: (SessionData) -> Unit) {
+        val reader = BufferedReader(InputStreamReader(input, Charsets.UTF_8), TEXT_BUFFER_SIZE)
+        val header = reader.readLine() ?: return
+        if (header.trim() != CSV_HEADER.joinToString(",")) {
+            throw SessionFormatException("Not a session archive")
+        }
+        var lineNumber = 1
+        while (true) {
+            val line = reader.readLine() ?: break
+            lineNumber++
+            if (line.isBlank()) continue
+            action(parseCsvRow(line, lineNumber))
+        }
+    }
+    
+    private fun parseCsvRow(line: String, lineNumber: Int): SessionData {
+        val fields = line.split(',')
+        if (fields.size != CSV_HEADER.size) {
+            throw SessionFormatException("Expected ${CSV_HEADER.size} fields on line $lineNumber")
+        }
+        try {
+            return SessionData(
+                id = fields[0].trim(),
+                startTime = fields[1].trim().toLong(),
+                endTime = fields[2].trim().toLong(),
+                durationMinutes = fields[3].trim().toInt(),
+                completed = fields[4].trim().toBooleanStrict(),
+                technique = fields[5].trim().toInt(),
+                breathCount = fields[6].trim().toInt(),
+                interruptions = fields[7].trim().toInt(),
+                zoneOffsetSeconds = fields[8].trim().ifEmpty { null }?.toInt() ?: SessionData.UNKNOWN_ZONE_OFFSET,
+                activeSeconds = fields[9].trim().toInt()
+            )
+        } catch (e: IllegalArgumentException) {
+            throw SessionFormatException("Invalid value on line $lineNumber: ${e.message}")
+        }
+    }
+    
+    private fun drain(channel: WritableByteChannel, buffer: ByteBuffer) {
+        buffer.flip()
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) < 0) throw IOException("Could not write session archive")
+        }
+        buffer.clear()
+    }
+}
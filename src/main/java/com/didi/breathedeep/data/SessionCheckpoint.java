@@ -0,0 +1,122 @@
+package com.didi.breathedeep.data
+
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.util.UUID
+import java.util.zip.CRC32
+
+/**
+ * Progress of the running session, kept in one fixed-size slot that is overwritten in place.
+ *
+ * A checkpoint is a single positional write of [SLOT_SIZE] bytes with no sync, cheap
+ * enough to repeat every few seconds. The page cache keeps it through a process
+ * death, which is the case it exists for. A checksum rejects a slot torn by a crash
+ * mid-write, in which case the session is treated as having no progress.
+ *
+ * Layout (big-endian):
+ * ```
+ *  0  int    magic
+ *  4  int    reserved
+ *  8  long   session id, most significant bits
+ * 16  long   session id, least significant bits
+ * 24  long   active (unpaused) time, millis
+ * 32  long   wall time of the checkpoint
+ * 40  int    CRC32 of bytes 0-39
+ * 44  int    reserved
+ * ```
+ */
+class SessionCheckpoint(file: File) {
+    
+    private val channel: FileChannel = RandomAccessFile(file, "rw").channel
+    private val slot = ByteBuffer.allocate(SLOT_SIZE).order(ByteOrder.BIG_ENDIAN)
+    private val crc = CRC32()
+    
+    /**
+     * Progress recorded for an interrupted session
+     */
+    data class Progress(
+        val sessionId: String,
+        val activeMillis: Long,
+        val writtenAt: Long
+    )
+    
+    /**
+     * Overwrites the slot with the running session's progress
+     */
+    @Synchronized
+    fun write(sessionId: String, activeMillis: Long) {
+        val uuid = UUID.fromString(sessionId)
+        slot.clear()
+        slot.putInt(OFFSET_MAGIC, MAGIC)
+        slot.putInt(OFFSET_MAGIC + 4, 0)
+        slot.putLong(OFFSET_ID_MSB, uuid.mostSignificantBits)
+        slot.putLong(OFFSET_ID_LSB, uuid.leastSignificantBits)
+        slot.putLong(OFFSET_ACTIVE, activeMillis)
+        slot.putLong(OFFSET_WRITTEN_AT, System.currentTimeMillis())
+        slot.putInt(OFFSET_CRC, checksum())
+        slot.putInt(OFFSET_CRC + 4, 0)
+        writeSlot()
+    }
+    
+    /**
+     * Reads the slot, or null if it is empty, cleared or torn
+     */
+    @Synchronized
+    fun read(): Progress? {
+        if (channel.size() < SLOT_SIZE) return null
+        slot.clear()
+        var position = 0L
+        while (slot.hasRemaining()) {
+            val read = channel.read(slot, position)
+            if (read < 0) return null
+            position += read
+        }
+        if (slot.getInt(OFFSET_MAGIC) != MAGIC || slot.getInt(OFFSET_CRC) != checksum()) return null
+        return Progress(
+            sessionId = UUID(slot.getLong(OFFSET_ID_MSB), slot.getLong(OFFSET_ID_LSB)).toString(),
+            activeMillis = slot.getLong(OFFSET_ACTIVE),
+            writtenAt = slot.getLong(OFFSET_WRITTEN_AT)
+        )
+    }
+    
+    /**
+     * Empties the slot once its session has been completed or finalized
+     */
+    @Synchronized
+    fun clear() {
+        slot.clear()
+        for (i in 0 until SLOT_SIZE) {
+            slot.put(i, 0)
+        }
+        writeSlot()
+    }
+    
+    private fun checksum(): Int {
+        crc.reset()
+        crc.update(slot.array(), slot.arrayOffset(), OFFSET_CRC)
+        return crc.value.toInt()
+    }
+    
+    private fun writeSlot() {
+        slot.position(0)
+        slot.limit(SLOT_SIZE)
+        var position = 0L
+        while (slot.hasRemaining()) {
+            position += channel.write(slot, position)
+        }
+    }
+    
+    companion object {
+        private const val MAGIC = 0x4244434B // "BDCK"
+        private const val SLOT_SIZE = 48
+        private const val OFFSET_MAGIC = 0
+        private const val OFFSET_ID_MSB = 8
+        private const val OFFSET_ID_LSB = 16
+        private const val OFFSET_ACTIVE = 24
+        private const val OFFSET_WRITTEN_AT = 32
+        private const val OFFSET_CRC = 40
+    }
+}
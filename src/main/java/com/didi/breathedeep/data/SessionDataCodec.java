@@ -0,0 +1,217 @@
+package com.didi.breathedeep.data
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.UUID
+
+/**
+ * Thrown when a stored session record cannot be decoded
+ */
+class SessionFormatException(message: String) : IOException(message)
+
+/**
+ * Binary codec for [SessionData] records.
+ *
+ * Every record is [RECORD_SIZE] bytes and starts with a schema version byte, so new
+ * fields can be added in the reserved tail without changing the record width. All
+ * reads use absolute offsets into the caller's buffer; the only allocations while
+ * decoding are the returned [SessionData] and its id string.
+ *
+ * Layout (big-endian):
+ * ```
+ *  0  byte   schema version
+ *  1  byte   flags (bit 0: completed)
+ *  2  byte   technique
+ *  3  byte   reserved
+ *  4  int    duration minutes
+ *  8  long   id, most significant bits
+ * 16  long   id, least significant bits
+ * 24  long   start time
+ * 32  long   end time
+ * 40  int    breath count
+ * 44  short  interruptions
+ * 46  short  reserved
+ * 48  int    frames rendered            (v2)
+ * 52  int    dropped frames             (v2)
+ * 56  int    p50 frame time, micros     (v2)
+ * 60  int    p95 frame time, micros     (v2)
+ * 64  int    p99 frame time, micros     (v2)
+ * 68  int    zone offset, seconds       (v3)
+ * 72  int    active time, seconds       (v4)
+ * 76  ...    reserved, zero
+ * ```
+ */
+object SessionDataCodec {
+    
+    const val SCHEMA_VERSION = 4
+    const val RECORD_SIZE = 80
+    
+    /**
+     * Width of the records written before the schema version byte was introduced
+     */
+    const val UNVERSIONED_RECORD_SIZE = 40
+    
+    private const val OFFSET_VERSION = 0
+    private const val OFFSET_FLAGS = 1
+    private const val OFFSET_TECHNIQUE = 2
+    private const val OFFSET_DURATION = 4
+    private const val OFFSET_ID_MSB = 8
+    private const val OFFSET_ID_LSB = 16
+    private const val OFFSET_START = 24
+    private const val OFFSET_END = 32
+    private const val OFFSET_BREATHS = 40
+    private const val OFFSET_INTERRUPTIONS = 44
+    private const val OFFSET_FRAMES = 48
+    private const val OFFSET_DROPPED_FRAMES = 52
+    private const val OFFSET_FRAME_P50 = 56
+    private const val OFFSET_FRAME_P95 = 60
+    private const val OFFSET_FRAME_P99 = 64
+    private const val OFFSET_ZONE_OFFSET = 68
+    private const val OFFSET_ACTIVE_SECONDS = 72
+    
+    private const val FLAG_COMPLETED = 1
+    
+    /**
+     * Writes one record at the buffer's position and advances it by [RECORD_SIZE].
+     * Throws IllegalArgumentException if the session id is not a UUID.
+     */
+    fun encode(session: SessionData, buffer: ByteBuffer) {
+        val uuid = UUID.fromString(session.id)
+        val base = buffer.position()
+        for (i in 0 until RECORD_SIZE) {
+            buffer.put(base + i, 0)
+        }
+        buffer.put(base + OFFSET_VERSION, SCHEMA_VERSION.toByte())
+        buffer.put(base + OFFSET_FLAGS, (if (session.completed) FLAG_COMPLETED else 0).toByte())
+        buffer.put(base + OFFSET_TECHNIQUE, session.technique.toByte())
+        buffer.putInt(base + OFFSET_DURATION, session.durationMinutes)
+        buffer.putLong(base + OFFSET_ID_MSB, uuid.mostSignificantBits)
+        buffer.putLong(base + OFFSET_ID_LSB, uuid.leastSignificantBits)
+        buffer.putLong(base + OFFSET_START, session.startTime)
+        buffer.putLong(base + OFFSET_END, session.endTime)
+        buffer.putInt(base + OFFSET_BREATHS, session.breathCount)
+        buffer.putShort(base + OFFSET_INTERRUPTIONS, session.interruptions.coerceAtMost(Short.MAX_VALUE.toInt()).toShort())
+        session.frameSummary?.let {
+            buffer.putInt(base + OFFSET_FRAMES, it.totalFrames)
+            buffer.putInt(base + OFFSET_DROPPED_FRAMES, it.droppedFrames)
+            buffer.putInt(base + OFFSET_FRAME_P50, it.p50Micros)
+            buffer.putInt(base + OFFSET_FRAME_P95, it.p95Micros)
+            buffer.putInt(base + OFFSET_FRAME_P99, it.p99Micros)
+        }
+        buffer.putInt(base + OFFSET_ZONE_OFFSET, session.zoneOffsetSeconds)
+        buffer.putInt(base + OFFSET_ACTIVE_SECONDS, session.activeSeconds)
+        buffer.position(base + RECORD_SIZE)
+    }
+    
+    /**
+     * Decodes the record starting at [offset]
+     */
+    fun decode(buffer: ByteBuffer, offset: Int): SessionData {
+        val version = schemaVersion(buffer, offset)
+        if (version < 1 || version > SCHEMA_VERSION) {
+            throw SessionFormatException("Unsupported session schema version $version")
+        }
+        return SessionData(
+            id = UUID(idMostSignificantBits(buffer, offset), idLeastSignificantBits(buffer, offset)).toString(),
+            startTime = startTime(buffer, offset),
+            durationMinutes = buffer.getInt(offset + OFFSET_DURATION),
+            completed = isCompleted(buffer, offset),
+            endTime = buffer.getLong(offset + OFFSET_END),
+            technique = buffer.get(offset + OFFSET_TECHNIQUE).toInt() and 0xFF,
+            breathCount = buffer.getInt(offset + OFFSET_BREATHS),
+            interruptions = buffer.getShort(offset + OFFSET_INTERRUPTIONS).toInt(),
+            frameSummary = if (version >= 2) decodeFrameSummary(buffer, offset) else null,
+            zoneOffsetSeconds = if (version >= 3) {
+                buffer.getInt(offset + OFFSET_ZONE_OFFSET)
+            } else {
+                SessionData.UNKNOWN_ZONE_OFFSET
+            },
+            activeSeconds = if (version >= 4) buffer.getInt(offset + OFFSET_ACTIVE_SECONDS) else 0
+        )
+    }
+    
+    private fun decodeFrameSummary(buffer: ByteBuffer, offset: Int): FrameSummary? {
+        val totalFrames = buffer.getInt(offset + OFFSET_FRAMES)
+        if (totalFrames == 0) return null
+        return FrameSummary(
+            totalFrames = totalFrames,
+            droppedFrames = buffer.getInt(offset + OFFSET_DROPPED_FRAMES),
+            p50Micros = buffer.getInt(offset + OFFSET_FRAME_P50),
+            p95Micros = buffer.getInt(offset + OFFSET_FRAME_P95),
+            p99Micros = buffer.getInt(offset + OFFSET_FRAME_P99)
+        )
+    }
+    
+    fun schemaVersion(buffer: ByteBuffer, offset: Int): Int = buffer.get(offset + OFFSET_VERSION).toInt() and 0xFF
+    
+    fun idMostSignificantBits(buffer: ByteBuffer, offset: Int): Long = buffer.getLong(offset + OFFSET_ID_MSB)
+    
+    fun idLeastSignificantBits(buffer: ByteBuffer, offset: Int): Long = buffer.getLong(offset + OFFSET_ID_LSB)
+    
+    fun startTime(buffer: ByteBuffer, offset: Int): Long = buffer.getLong(offset + OFFSET_START)
+    
+    fun endTime(buffer: ByteBuffer, offset: Int): Long = buffer.getLong(offset + OFFSET_END)
+    
+    fun isCompleted(buffer: ByteBuffer, offset: Int): Boolean {
+        return (buffer.get(offset + OFFSET_FLAGS).toInt() and FLAG_COMPLETED) != 0
+    }
+    
+    /**
+     * Decodes a record in the unversioned 40-byte layout:
+     * id (2 longs), start time, end time, duration minutes, flags
+     */
+    fun decodeUnversioned(buffer: ByteBuffer, offset: Int): SessionData {
+        return SessionData(
+            id = UUID(buffer.getLong(offset), buffer.getLong(offset + 8)).toString(),
+            startTime = buffer.getLong(offset + 16),
+            durationMinutes = buffer.getInt(offset + 32),
+            completed = (buffer.get(offset + 36).toInt() and FLAG_COMPLETED) != 0,
+            endTime = buffer.getLong(offset + 24)
+        )
+    }
+    
+    /**
+     * Decodes the pipe-delimited "id|startTime|durationMinutes|completed|endTime" strings
+     * stored in SharedPreferences before the session log existed
+     */
+    fun decodeLegacy(text: String): SessionData {
+        val idEnd = nextField(text, 0)
+        val startEnd = nextField(text, idEnd + 1)
+        val durationEnd = nextField(text, startEnd + 1)
+        val completedEnd = nextField(text, durationEnd + 1)
+        val endEnd = text.length
+        if (idEnd == 0) throw SessionFormatException("Missing session id in \"$text\"")
+        
+        return SessionData(
+            id = text.substring(0, idEnd),
+            startTime = parseLong(text, idEnd + 1, startEnd),
+            durationMinutes = parseLong(text, startEnd + 1, durationEnd).toInt(),
+            completed = text.regionMatches(durationEnd + 1, "true", 0, 4, ignoreCase = true) &&
+                completedEnd - durationEnd - 1 == 4,
+            endTime = parseLong(text, completedEnd + 1, endEnd)
+        )
+    }
+    
+    private fun nextField(text: String, from: Int): Int {
+        val end = text.indexOf('|', from)
+        if (end < 0) throw SessionFormatException("Truncated legacy session \"$text\"")
+        return end
+    }
+    
+    private fun parseLong(text: String, start: Int, end: Int): Long {
+        if (start >= end) throw SessionFormatException("Empty number in legacy session \"$text\"")
+        var i = start
+        val negative = text[i] == '-'
+        if (negative) i++
+        if (i == end) throw SessionFormatException("Invalid number in legacy session \"$text\"")
+        
+        var value = 0L
+        while (i < end) {
+            val digit = text[i] - '0'
+            if (digit < 0 || digit > 9) throw SessionFormatException("Invalid number in legacy session \"$text\"")
+            value = value * 10 + digit
+            i++
+        }
+        return if (negative) -value else value
+    }
+}
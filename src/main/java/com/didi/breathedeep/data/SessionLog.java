@@ -0,0 +1,390 @@
+package com.didi.breathedeep.data
+
+import android.util.Log
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.util.UUID
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Append-only log of fixed-width binary session records, encoded by [SessionDataCodec].
+ *
+ * Every save appends one record; an in-memory index maps each session id to the
+ * slot of its latest version. Superseded records are dropped by a background
+ * compaction once they outnumber the live ones.
+ */
+class SessionLog(private val file: File) {
+    
+    private val lock = Any()
+    private val index = LinkedHashMap<String, Int>()
+    private val completedIds = HashSet<String>()
+    private val unfinishedIds = HashSet<String>()
+    private val recordBuffer = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.BIG_ENDIAN)
+    private var channel: FileChannel = openChannel(file)
+    private var slotCount = 0
+    private var compactionScheduled = false
+    
+    init {
+        load()
+    }
+    
+    /**
+     * Appends a new version of the session and points the index at it
+     */
+    fun append(session: SessionData) {
+        appendAll(listOf(session))
+    }
+    
+    /**
+     * Appends new versions of several sessions with a single write and sync
+     */
+    fun appendAll(sessions: List<SessionData>) {
+        if (sessions.isEmpty()) return
+        synchronized(lock) {
+            val batchBuffer = if (sessions.size == 1) {
+                recordBuffer
+            } else {
+                ByteBuffer.allocate(RECORD_SIZE * sessions.size)
+            }
+            batchBuffer.clear()
+            for (session in sessions) {
+                SessionDataCodec.encode(session, batchBuffer)
+            }
+            batchBuffer.flip()
+            writeFully(channel, batchBuffer, offsetOf(slotCount))
+            channel.force(false)
+            
+            for (session in sessions) {
+                index[session.id] = slotCount
+                slotCount++
+                if (session.completed) completedIds.add(session.id) else completedIds.remove(session.id)
+                if (!session.completed && session.endTime == 0L) {
+                    unfinishedIds.add(session.id)
+                } else {
+                    unfinishedIds.remove(session.id)
+                }
+            }
+            
+            maybeScheduleCompaction()
+        }
+    }
+    
+    /**
+     * Drops sessions from the log. The file is compacted right away, since the records
+     * would otherwise come back the next time the log is loaded.
+     */
+    fun removeAll(ids: Collection<String>) {
+        if (ids.isEmpty()) return
+        synchronized(lock) {
+            for (id in ids) {
+                index.remove(id)
+                completedIds.remove(id)
+                unfinishedIds.remove(id)
+            }
+            compact()
+        }
+    }
+    
+    /**
+     * Reads the latest version of a session, or null if the id is unknown
+     */
+    fun get(id: String): SessionData? {
+        synchronized(lock) {
+            val slot = index[id] ?: return null
+            return readSlot(slot)
+        }
+    }
+    
+    /**
+     * Checks whether a session id has been recorded
+     */
+    fun contains(id: String): Boolean {
+        synchronized(lock) {
+            return index.containsKey(id)
+        }
+    }
+    
+    /**
+     * Reads the latest version of every recorded session
+     */
+    fun readAll(): List<SessionData> {
+        synchronized(lock) {
+            val sessions = ArrayList<SessionData>(index.size)
+            for (slot in index.values) {
+                readSlot(slot)?.let { sessions.add(it) }
+            }
+            return sessions
+        }
+    }
+    
+    /**
+     * Calls [action] with the latest version of every session recorded when the call
+     * started, in the order they were first recorded. The ids are snapshotted up front and
+     * the sessions decoded in fixed-size batches, holding the lock only while a batch is
+     * read, so a slow [action] never blocks writers and memory use does not grow with the
+     * size of the log. A session removed in the meantime is skipped.
+     */
+    fun forEach(action: (SessionData) -> Unit) {
+        val ids = synchronized(lock) { ArrayList(index.keys) }
+        val batch = ArrayList<SessionData>(READ_BATCH)
+        var next = 0
+        while (next < ids.size) {
+            val end = minOf(next + READ_BATCH, ids.size)
+            synchronized(lock) {
+                for (i in next until end) {
+                    // Looked up again, since compaction may have moved it
+                    val slot = index[ids[i]] ?: continue
+                    readSlot(slot)?.let { batch.add(it) }
+                }
+            }
+            batch.forEach(action)
+            batch.clear()
+            next = end
+        }
+    }
+    
+    /**
+     * Number of live sessions in the log
+     */
+    fun size(): Int {
+        synchronized(lock) {
+            return index.size
+        }
+    }
+    
+    /**
+     * Number of live sessions whose latest version is marked completed
+     */
+    fun completedCount(): Int {
+        synchronized(lock) {
+            return completedIds.size
+        }
+    }
+    
+    /**
+     * Ids of live sessions whose latest version was neither completed nor ended
+     */
+    fun unfinishedIds(): Set<String> {
+        synchronized(lock) {
+            return HashSet(unfinishedIds)
+        }
+    }
+    
+    /**
+     * Rewrites the log so that it only holds the latest version of each session
+     */
+    fun compact() {
+        synchronized(lock) {
+            compactionScheduled = false
+            if (slotCount == index.size) return
+            
+            val tempFile = File(file.parentFile, file.name + TEMP_SUFFIX)
+            val tempChannel = openChannel(tempFile, truncate = true)
+            val newIndex = LinkedHashMap<String, Int>(index.size)
+            try {
+                writeHeader(tempChannel)
+                var newSlot = 0
+                for ((id, slot) in index) {
+                    recordBuffer.clear()
+                    readFully(channel, recordBuffer, offsetOf(slot))
+                    recordBuffer.flip()
+                    writeFully(tempChannel, recordBuffer, offsetOf(newSlot))
+                    newIndex[id] = newSlot
+                    newSlot++
+                }
+                tempChannel.force(true)
+            } finally {
+                tempChannel.close()
+            }
+            
+            channel.close()
+            val replaced = tempFile.renameTo(file)
+            channel = openChannel(file)
+            if (!replaced) {
+                tempFile.delete()
+                throw IOException("Could not replace ${file.name} with compacted log")
+            }
+            index.clear()
+            index.putAll(newIndex)
+            slotCount = newIndex.size
+        }
+    }
+    
+    /**
+     * Closes the underlying file
+     */
+    fun close() {
+        synchronized(lock) {
+            channel.close()
+        }
+    }
+    
+    /**
+     * Builds the index from the records on disk, discarding a torn trailing record
+     */
+    private fun load() {
+        synchronized(lock) {
+            if (channel.size() < HEADER_SIZE) {
+                channel.truncate(0)
+                writeHeader(channel)
+                channel.force(true)
+                return
+            }
+            
+            val header = ByteBuffer.allocate(HEADER_SIZE)
+            readFully(channel, header, 0)
+            header.flip()
+            if (header.int != MAGIC) {
+                throw SessionFormatException("Unrecognised session log format in ${file.name}")
+            }
+            val storedRecordSize = header.int
+            if (storedRecordSize == SessionDataCodec.UNVERSIONED_RECORD_SIZE) {
+                upgradeUnversioned()
+            } else if (storedRecordSize != RECORD_SIZE) {
+                throw SessionFormatException("Unsupported record size $storedRecordSize in ${file.name}")
+            }
+            
+            val recordBytes = channel.size() - HEADER_SIZE
+            slotCount = (recordBytes / RECORD_SIZE).toInt()
+            if (recordBytes % RECORD_SIZE != 0L) {
+                // A write was interrupted mid-record; drop the partial tail
+                channel.truncate(offsetOf(slotCount))
+            }
+            
+            val reader = ByteBuffer.allocate(RECORD_SIZE * READ_BATCH)
+            var slot = 0
+            while (slot < slotCount) {
+                val batch = minOf(READ_BATCH, slotCount - slot)
+                reader.clear()
+                reader.limit(batch * RECORD_SIZE)
+                readFully(channel, reader, offsetOf(slot))
+                reader.flip()
+                for (i in 0 until batch) {
+                    val recordStart = i * RECORD_SIZE
+                    val id = UUID(
+                        SessionDataCodec.idMostSignificantBits(reader, recordStart),
+                        SessionDataCodec.idLeastSignificantBits(reader, recordStart)
+                    ).toString()
+                    index[id] = slot + i
+                    val completed = SessionDataCodec.isCompleted(reader, recordStart)
+                    if (completed) completedIds.add(id) else completedIds.remove(id)
+                    if (!completed && SessionDataCodec.endTime(reader, recordStart) == 0L) {
+                        unfinishedIds.add(id)
+                    } else {
+                        unfinishedIds.remove(id)
+                    }
+                }
+                slot += batch
+            }
+        }
+    }
+    
+    /**
+     * Rewrites a log of unversioned 40-byte records in the current record format
+     */
+    private fun upgradeUnversioned() {
+        val oldSize = SessionDataCodec.UNVERSIONED_RECORD_SIZE
+        val oldCount = ((channel.size() - HEADER_SIZE) / oldSize).toInt()
+        val tempFile = File(file.parentFile, file.name + TEMP_SUFFIX)
+        val tempChannel = openChannel(tempFile, truncate = true)
+        try {
+            writeHeader(tempChannel)
+            val oldRecord = ByteBuffer.allocate(oldSize)
+            for (slot in 0 until oldCount) {
+                oldRecord.clear()
+                readFully(channel, oldRecord, HEADER_SIZE + slot.toLong() * oldSize)
+                recordBuffer.clear()
+                SessionDataCodec.encode(SessionDataCodec.decodeUnversioned(oldRecord, 0), recordBuffer)
+                recordBuffer.flip()
+                writeFully(tempChannel, recordBuffer, offsetOf(slot))
+            }
+            tempChannel.force(true)
+        } finally {
+            tempChannel.close()
+        }
+        
+        channel.close()
+        val replaced = tempFile.renameTo(file)
+        channel = openChannel(file)
+        if (!replaced) {
+            tempFile.delete()
+            throw IOException("Could not replace ${file.name} with upgraded log")
+        }
+    }
+    
+    private fun readSlot(slot: Int): SessionData? {
+        recordBuffer.clear()
+        readFully(channel, recordBuffer, offsetOf(slot))
+        return try {
+            SessionDataCodec.decode(recordBuffer, 0)
+        } catch (e: SessionFormatException) {
+            Log.w(TAG, "Unreadable session in slot $slot", e)
+            null
+        }
+    }
+    
+    private fun maybeScheduleCompaction() {
+        val dead = slotCount - index.size
+        if (!compactionScheduled && dead >= COMPACTION_MIN_DEAD && dead > index.size) {
+            compactionScheduled = true
+            compactionExecutor.execute {
+                try {
+                    compact()
+                } catch (e: IOException) {
+                    Log.w(TAG, "Compaction of ${file.name} failed", e)
+                }
+            }
+        }
+    }
+    
+    private fun writeHeader(target: FileChannel) {
+        val header = ByteBuffer.allocate(HEADER_SIZE)
+        header.putInt(MAGIC)
+        header.putInt(RECORD_SIZE)
+        header.flip()
+        writeFully(target, header, 0)
+    }
+    
+    companion object {
+        private const val TAG = "SessionLog"
+        private const val MAGIC = 0x42444C47 // "BDLG"
+        private const val HEADER_SIZE = 8
+        private const val READ_BATCH = 256
+        private const val COMPACTION_MIN_DEAD = 64
+        private const val TEMP_SUFFIX = ".compact"
+        private const val RECORD_SIZE = SessionDataCodec.RECORD_SIZE
+        
+        private val compactionExecutor: ExecutorService = Executors.newSingleThreadExecutor { runnable ->
+            Thread(runnable, "session-log-compaction").apply { isDaemon = true }
+        }
+        
+        private fun offsetOf(slot: Int): Long = HEADER_SIZE + slot.toLong() * RECORD_SIZE
+        
+        private fun openChannel(file: File, truncate: Boolean = false): FileChannel {
+            val raf = RandomAccessFile(file, "rw")
+            if (truncate) raf.setLength(0)
+            return raf.channel
+        }
+        
+        private fun writeFully(target: FileChannel, buffer: ByteBuffer, position: Long) {
+            var offset = position
+            while (buffer.hasRemaining()) {
+                offset += target.write(buffer, offset)
+            }
+        }
+        
+        private fun readFully(source: FileChannel, buffer: ByteBuffer, position: Long) {
+            var offset = position
+            while (buffer.hasRemaining()) {
+                val read = source.read(buffer, offset)
+                if (read < 0) throw IOException("Unexpected end of session log")
+                offset += read
+            }
+        }
+    }
+}
@@ -2,7 +2,12 @@ package com.didi.breathedeep.data
 
 import android.content.Context
 import android.content.SharedPreferences
+import android.util.Log
+import android.util.LruCache
+import java.io.File
+import java.io.IOException
 import java.util.*
+import java.util.concurrent.TimeUnit
 
 /**
  * Manages meditation session data and history
@@ -10,226 +15,471 @@ import java.util.*
 class SessionManager(context: Context) {
     
     private val prefs: SharedPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+    private val sessionLog = SessionLog(File(context.filesDir, SESSION_LOG_FILE))
+    private val aggregates = SessionAggregates(File(context.filesDir, AGGREGATES_FILE))
+    private val checkpoint = SessionCheckpoint(File(context.filesDir, CHECKPOINT_FILE))
+    // Replaced whole by a rebuild, so readers on other threads never see it half filled
+    @Volatile
+    private var timeIndex = SessionTimeIndex()
+    private val pendingSessions = LinkedHashMap<String, SessionData>()
+    
+    // Decoded sessions, so screens revisiting the same history do not re-read the log
+    private val sessionCache = object : LruCache<String, SessionData>(CACHE_MAX_BYTES) {
+        override fun sizeOf(key: String, value: SessionData): Int {
+            return if (value.frameSummary != null) SESSION_BYTES + FRAME_SUMMARY_BYTES else SESSION_BYTES
+        }
+    }
+    private var transactionDepth = 0
+    private var aggregatesDirty = false
     private var currentSessionId: String? = null
     
+    init {
+        migrateLegacySessions()
+        if (aggregates.verify(sessionLog.completedCount(), startedCount()) { sessionLog.readAll() }) {
+            aggregates.save()
+        }
+        // No session can be running yet in this process, so any unfinished one was interrupted
+        recoverInterruptedSession()
+        collectOrphanedSessions()
+        buildTimeIndex()
+    }
+    
     /**
-     * Records the start of a new meditation session
+     * Records the start of a new meditation session using the given breathing technique id
      */
-    fun startSession(durationMinutes: Int) {
+    fun startSession(durationMinutes: Int, technique: Int = 0) {
         val sessionId = UUID.randomUUID().toString()
         currentSessionId = sessionId
         
+        val now = System.currentTimeMillis()
         val sessionData = SessionData(
             id = sessionId,
-            startTime = System.currentTimeMillis(),
+            startTime = now,
             durationMinutes = durationMinutes,
-            completed = false
+            completed = false,
+            technique = technique,
+            zoneOffsetSeconds = SessionAggregates.zoneOffsetSeconds(now)
         )
         
         saveSession(sessionData)
+        aggregates.recordStart()
+        aggregatesDirty = true
     }
     
     /**
-     * Marks the current session as completed
+     * Marks the current session as completed, keeping its frame timing summary if one was recorded
      */
-    fun completeSession() {
+    fun completeSession(frameSummary: FrameSummary? = null) {
         currentSessionId?.let { id ->
             val session = getSession(id)
             session?.let {
                 val updatedSession = it.copy(
                     completed = true,
-                    endTime = System.currentTimeMillis()
+                    endTime = System.currentTimeMillis(),
+                    frameSummary = frameSummary,
+                    activeSeconds = it.durationMinutes * SECONDS_PER_MINUTE
                 )
-                saveSession(updatedSession)
-                
-                // Update total minutes
-                val currentTotal = getTotalMinutes()
-                saveTotalMinutes(currentTotal + it.durationMinutes)
-                
-                // Update total sessions
-                val currentSessions = getTotalSessions()
-                saveTotalSessions(currentSessions + 1)
+                transaction {
+                    saveSession(updatedSession)
+                    
+                    // Fold into totals, streak and daily minutes
+                    aggregates.record(updatedSession)
+                    aggregatesDirty = true
+                }
                 
-                // Update streak
-                updateStreak()
+                // Index only once the record is in the log, so readers can always resolve it
+                timeIndex.add(updatedSession.startTime, updatedSession.id)
+            }
+        }
+        finishCurrentSession()
+    }
+    
+    /**
+     * Records how much of the current session has run, so it can be recovered if the process dies
+     */
+    fun checkpoint(activeMillis: Long) {
+        currentSessionId?.let { checkpoint.write(it, activeMillis) }
+    }
+    
+    /**
+     * Finalizes the current session as partial after the user ended it early
+     */
+    fun abandonSession(activeMillis: Long) {
+        currentSessionId?.let { id ->
+            getSession(id)?.let { session ->
+                saveSession(
+                    session.copy(
+                        endTime = System.currentTimeMillis(),
+                        activeSeconds = TimeUnit.MILLISECONDS.toSeconds(activeMillis).toInt()
+                    )
+                )
+            }
+        }
+        finishCurrentSession()
+    }
+    
+    private fun finishCurrentSession() {
+        currentSessionId = null
+        checkpoint.clear()
+    }
+    
+    /**
+     * Runs [block] as one write: sessions saved inside it reach the log in a single
+     * append when the outermost transaction ends. Aggregate changes are only marked
+     * dirty and are written by [flush], since they can be rebuilt from the log.
+     */
+    fun <T> transaction(block: () -> T): T {
+        transactionDepth++
+        try {
+            return block()
+        } finally {
+            transactionDepth--
+            if (transactionDepth == 0) {
+                val batch = synchronized(pendingSessions) {
+                    ArrayList(pendingSessions.values).also { pendingSessions.clear() }
+                }
+                appendToLog(batch)
             }
         }
     }
     
     /**
-     * Retrieves a specific session by ID
+     * Writes any aggregate changes made since the last flush
+     */
+    fun flush() {
+        if (aggregatesDirty) {
+            aggregates.save()
+            aggregatesDirty = false
+        }
+    }
+    
+    /**
+     * Retrieves a specific session by ID, from the cache when it has been read or written before
      */
     private fun getSession(id: String): SessionData? {
-        val sessionJson = prefs.getString(SESSION_PREFIX + id, null) ?: return null
-        return SessionData.fromJson(sessionJson)
+        synchronized(pendingSessions) { pendingSessions[id] }?.let { return it }
+        // Held across the log read so a concurrent write cannot be overwritten by a stale copy
+        synchronized(sessionCache) {
+            return sessionCache.get(id) ?: sessionLog.get(id)?.also { sessionCache.put(id, it) }
+        }
     }
     
     /**
-     * Saves a session to persistent storage
+     * Saves a session to persistent storage, or queues it if a transaction is open
      */
     private fun saveSession(session: SessionData) {
-        prefs.edit().putString(SESSION_PREFIX + session.id, session.toJson()).apply()
+        if (transactionDepth > 0) {
+            synchronized(pendingSessions) { pendingSessions[session.id] = session }
+        } else {
+            appendToLog(listOf(session))
+        }
+    }
+    
+    /**
+     * Appends sessions to the log and replaces any cached copies with the new versions
+     */
+    private fun appendToLog(sessions: List<SessionData>) {
+        synchronized(sessionCache) {
+            sessionLog.appendAll(sessions)
+            sessions.forEach { sessionCache.put(it.id, it) }
+        }
+    }
+    
+    /**
+     * Moves sessions stored under the legacy per-session preference keys into the session log
+     */
+    private fun migrateLegacySessions() {
+        if (prefs.getBoolean(LOG_MIGRATED_KEY, false)) return
         
-        // Add to session list
-        val sessionList = getSessionList().toMutableList()
-        if (!sessionList.contains(session.id)) {
-            sessionList.add(session.id)
-            saveSessionList(sessionList)
+        val editor = prefs.edit()
+        val migrated = LinkedHashMap<String, SessionData>()
+        val listJson = prefs.getString(SESSION_LIST_KEY, null)
+        listJson?.split(",")?.filter { it.isNotEmpty() }?.forEach { id ->
+            val stored = prefs.getString(SESSION_PREFIX + id, null)
+            try {
+                val session = stored?.let { SessionDataCodec.decodeLegacy(it) }
+                if (session != null && !sessionLog.contains(session.id)) {
+                    migrated[session.id] = session
+                }
+            } catch (e: SessionFormatException) {
+                Log.w(TAG, "Skipping unreadable legacy session $id", e)
+            } catch (e: IllegalArgumentException) {
+                Log.w(TAG, "Skipping legacy session with non-UUID id $id", e)
+            }
+            editor.remove(SESSION_PREFIX + id)
+        }
+        // One write and sync for the whole history; prefs are only cleared once it is in the log
+        sessionLog.appendAll(ArrayList(migrated.values))
+        
+        // The totals and streak are rebuilt from the log, so the old copies go too
+        editor.remove(SESSION_LIST_KEY)
+        for (key in LEGACY_AGGREGATE_KEYS) {
+            editor.remove(key)
         }
+        editor.putBoolean(LOG_MIGRATED_KEY, true)
+        editor.apply()
     }
     
     /**
-     * Gets the list of all session IDs
+     * Settles the session that was running when the process last died, using its checkpoint.
+     * A session that reached its planned length, give or take one checkpoint interval, is
+     * completed; anything shorter is finalized as partial.
      */
-    private fun getSessionList(): List<String> {
-        val listJson = prefs.getString(SESSION_LIST_KEY, null) ?: return emptyList()
-        return try {
-            listJson.split(",").filter { it.isNotEmpty() }
-        } catch (e: Exception) {
-            emptyList()
+    private fun recoverInterruptedSession() {
+        val progress = checkpoint.read() ?: return
+        val session = sessionLog.get(progress.sessionId)
+        if (session != null && !session.completed && session.endTime == 0L) {
+            val plannedMillis = TimeUnit.MINUTES.toMillis(session.durationMinutes.toLong())
+            val activeSeconds = TimeUnit.MILLISECONDS.toSeconds(progress.activeMillis).toInt()
+            if (progress.activeMillis + RECOVERY_GRACE_MILLIS >= plannedMillis) {
+                val recovered = session.copy(
+                    completed = true,
+                    endTime = progress.writtenAt,
+                    activeSeconds = activeSeconds
+                )
+                appendToLog(listOf(recovered))
+                aggregates.record(recovered)
+                aggregates.save()
+            } else {
+                appendToLog(listOf(session.copy(endTime = progress.writtenAt, activeSeconds = activeSeconds)))
+            }
+        }
+        checkpoint.clear()
+    }
+    
+    /**
+     * Drops sessions that were started but never completed, checkpointed or ended, such as
+     * those left behind before checkpoints existed. They stay counted as started.
+     *
+     * The ids are noted in prefs before the log is touched and only added to the discarded
+     * count, in the same commit that forgets them, once the removal went through. A crash
+     * or failure anywhere in between resumes the same removal on the next start, so no
+     * session is counted twice or lost from the count.
+     */
+    private fun collectOrphanedSessions() {
+        val pending = pendingOrphans()
+        val orphans = pending ?: sessionLog.unfinishedIds()
+        if (orphans.isEmpty()) return
+        try {
+            if (pending == null) {
+                prefs.edit().putStringSet(PENDING_ORPHANS_KEY, orphans).commit()
+            }
+            sessionLog.removeAll(orphans)
+            prefs.edit()
+                .putInt(DISCARDED_SESSIONS_KEY, discardedCount() + orphans.size)
+                .remove(PENDING_ORPHANS_KEY)
+                .commit()
+        } catch (e: IOException) {
+            Log.w(TAG, "Could not remove ${orphans.size} orphaned sessions", e)
         }
     }
     
     /**
-     * Saves the list of session IDs
+     * Sessions ever started: those in the log plus those garbage-collected from it,
+     * including any removed by a collection that was interrupted before it counted them
+     */
+    private fun startedCount(): Int {
+        val uncounted = pendingOrphans()?.count { !sessionLog.contains(it) } ?: 0
+        return sessionLog.size() + discardedCount() + uncounted
+    }
+    
+    private fun pendingOrphans(): Set<String>? = prefs.getStringSet(PENDING_ORPHANS_KEY, null)
+    
+    private fun discardedCount(): Int = prefs.getInt(DISCARDED_SESSIONS_KEY, 0)
+    
+    /**
+     * Indexes the start times of all completed sessions in the log, then swaps the new index in
      */
-    private fun saveSessionList(list: List<String>) {
-        prefs.edit().putString(SESSION_LIST_KEY, list.joinToString(",")).apply()
+    private fun buildTimeIndex() {
+        val index = SessionTimeIndex()
+        sessionLog.readAll()
+            .filter { it.completed }
+            .sortedBy { it.startTime }
+            .forEach { index.add(it.startTime, it.id) }
+        timeIndex = index
     }
     
     /**
      * Gets all completed sessions
      */
     fun getCompletedSessions(): List<SessionData> {
-        return getSessionList()
-            .mapNotNull { getSession(it) }
-            .filter { it.completed }
-            .sortedByDescending { it.startTime }
+        return sessionsBetween(Long.MIN_VALUE, Long.MAX_VALUE)
     }
     
     /**
-     * Gets the total meditation minutes
+     * Gets completed sessions that started in [startInclusive, endExclusive), newest first
      */
-    fun getTotalMinutes(): Int {
-        return prefs.getInt(TOTAL_MINUTES_KEY, 0)
+    fun sessionsBetween(startInclusive: Long, endExclusive: Long): List<SessionData> {
+        return timeIndex.idsBetween(startInclusive, endExclusive).mapNotNull { getSession(it) }
     }
     
     /**
-     * Saves the total meditation minutes
+     * Gets a newest-first window of the completed sessions that started in [startInclusive, endExclusive),
+     * decoding only the sessions inside the window
      */
-    private fun saveTotalMinutes(minutes: Int) {
-        prefs.edit().putInt(TOTAL_MINUTES_KEY, minutes).apply()
+    fun sessionsBetween(startInclusive: Long, endExclusive: Long, offset: Int, limit: Int): List<SessionData> {
+        return timeIndex.idsBetween(startInclusive, endExclusive, offset, limit).mapNotNull { getSession(it) }
     }
     
     /**
-     * Gets the total number of completed sessions
+     * Gets the completed sessions of a local epoch day, newest first. Each session's day is
+     * taken in the zone it was started in, as for the day index behind the calendar.
      */
-    fun getTotalSessions(): Int {
-        return prefs.getInt(TOTAL_SESSIONS_KEY, 0)
+    fun sessionsOnDay(epochDay: Long): List<SessionData> {
+        // No zone is more than 18 hours from UTC, so the day's sessions all started in this window
+        val dayStart = TimeUnit.DAYS.toMillis(epochDay)
+        return sessionsBetween(dayStart - MAX_ZONE_OFFSET_MILLIS, dayStart + DAY_MILLIS + MAX_ZONE_OFFSET_MILLIS)
+            .filter { SessionAggregates.epochDay(it) == epochDay }
     }
     
     /**
-     * Saves the total number of completed sessions
+     * Counts completed sessions that started in [startInclusive, endExclusive)
      */
-    private fun saveTotalSessions(count: Int) {
-        prefs.edit().putInt(TOTAL_SESSIONS_KEY, count).apply()
+    fun countSessionsBetween(startInclusive: Long, endExclusive: Long): Int {
+        return timeIndex.countBetween(startInclusive, endExclusive)
     }
     
     /**
-     * Updates the current streak based on session history
+     * Gets the total meditation minutes
      */
-    private fun updateStreak() {
-        val calendar = Calendar.getInstance()
-        calendar.set(Calendar.HOUR_OF_DAY, 0)
-        calendar.set(Calendar.MINUTE, 0)
-        calendar.set(Calendar.SECOND, 0)
-        calendar.set(Calendar.MILLISECOND, 0)
-        val todayStart = calendar.timeInMillis
-        
-        // Check if there's a session today
-        val hasTodaySession = getCompletedSessions().any { 
-            it.startTime >= todayStart 
-        }
-        
-        if (hasTodaySession) {
-            // Get the last streak update day
-            val lastStreakDay = prefs.getLong(LAST_STREAK_DAY_KEY, 0)
-            val currentStreak = prefs.getInt(CURRENT_STREAK_KEY, 0)
-            
-            calendar.timeInMillis = lastStreakDay
-            val lastDay = calendar.get(Calendar.DAY_OF_YEAR)
-            val lastYear = calendar.get(Calendar.YEAR)
-            
-            calendar.timeInMillis = System.currentTimeMillis()
-            val today = calendar.get(Calendar.DAY_OF_YEAR)
-            val thisYear = calendar.get(Calendar.YEAR)
-            
-            // Check if this is a consecutive day
-            if (lastStreakDay == 0L || 
-                (thisYear == lastYear && today - lastDay == 1) ||
-                (thisYear > lastYear && today == 1 && isLastDayOfYear(lastDay, lastYear))) {
-                // Consecutive day, increment streak
-                saveCurrentStreak(currentStreak + 1)
-            } else if (thisYear == lastYear && today == lastDay) {
-                // Same day, do nothing
-            } else {
-                // Streak broken, reset to 1
-                saveCurrentStreak(1)
-            }
-            
-            // Update last streak day
-            prefs.edit().putLong(LAST_STREAK_DAY_KEY, todayStart).apply()
-            
-            // Update longest streak if needed
-            val longestStreak = prefs.getInt(LONGEST_STREAK_KEY, 0)
-            val updatedStreak = prefs.getInt(CURRENT_STREAK_KEY, 0)
-            if (updatedStreak > longestStreak) {
-                prefs.edit().putInt(LONGEST_STREAK_KEY, updatedStreak).apply()
-            }
-        }
+    fun getTotalMinutes(): Int {
+        return aggregates.totalMinutes
     }
     
     /**
-     * Checks if the given day is the last day of the year
+     * Gets the total number of completed sessions
      */
-    private fun isLastDayOfYear(day: Int, year: Int): Boolean {
-        val calendar = Calendar.getInstance()
-        calendar.set(Calendar.YEAR, year)
-        calendar.set(Calendar.MONTH, Calendar.DECEMBER)
-        calendar.set(Calendar.DAY_OF_MONTH, 31)
-        return day == calendar.get(Calendar.DAY_OF_YEAR)
+    fun getTotalSessions(): Int {
+        return aggregates.totalSessions
     }
     
     /**
      * Gets the current streak of consecutive days with meditation
      */
     fun getCurrentStreak(): Int {
-        return prefs.getInt(CURRENT_STREAK_KEY, 0)
+        return aggregates.currentStreak()
     }
     
     /**
-     * Saves the current streak value
+     * Gets the longest streak achieved
      */
-    private fun saveCurrentStreak(streak: Int) {
-        prefs.edit().putInt(CURRENT_STREAK_KEY, streak).apply()
+    fun getLongestStreak(): Int {
+        return aggregates.longestStreak
     }
     
     /**
-     * Gets the longest streak achieved
+     * Gets the minutes meditated on a local epoch day
      */
-    fun getLongestStreak(): Int {
-        return prefs.getInt(LONGEST_STREAK_KEY, 0)
+    fun getMinutesOnDay(epochDay: Long): Int {
+        return aggregates.minutesOnDay(epochDay)
+    }
+    
+    /**
+     * Gets the minutes meditated on each of [dayCount] consecutive local epoch days from [firstDay]
+     */
+    fun getMinutesBetween(firstDay: Long, dayCount: Int): IntArray {
+        return aggregates.minutesBetween(firstDay, dayCount)
+    }
+    
+    /**
+     * Calls [action] with every recorded session, completed or not, streaming from the log
+     */
+    fun forEachSession(action: (SessionData) -> Unit) {
+        sessionLog.forEach(action)
+    }
+    
+    /**
+     * Adds the sessions supplied by [source], skipping ids that are already recorded,
+     * and returns how many were added. Sessions are appended in batches as they arrive;
+     * totals, streaks and rollups are rebuilt once at the end rather than per session.
+     */
+    fun importSessions(source: ((SessionData) -> Unit) -> Unit): Int {
+        val batch = LinkedHashMap<String, SessionData>()
+        var imported = 0
+        
+        fun appendBatch() {
+            if (batch.isEmpty()) return
+            // New ids only, so there is nothing in the session cache to replace
+            sessionLog.appendAll(ArrayList(batch.values))
+            imported += batch.size
+            batch.clear()
+        }
+        
+        try {
+            source { imported ->
+                // Never-finished sessions would only be collected as orphans on the next launch
+                if (!imported.completed && imported.endTime == 0L) return@source
+                // Ids are stored in canonical form, so an upper-case copy must still match its original
+                val id = canonicalUuid(imported.id) ?: return@source
+                val session = if (id == imported.id) imported else imported.copy(id = id)
+                if (batch.containsKey(session.id) || sessionLog.contains(session.id)) return@source
+                batch[session.id] = session
+                if (batch.size >= IMPORT_BATCH) appendBatch()
+            }
+            appendBatch()
+        } finally {
+            // Sessions already appended stay, even if the rest of the file was unreadable
+            if (imported > 0) {
+                aggregates.rebuild(startedCount()) { action -> sessionLog.forEach(action) }
+                aggregates.save()
+                aggregatesDirty = false
+                buildTimeIndex()
+            }
+        }
+        return imported
+    }
+    
+    /**
+     * The canonical lower-case form of a UUID id, or null if [id] is not a UUID
+     */
+    private fun canonicalUuid(id: String): String? {
+        return try {
+            UUID.fromString(id).toString()
+        } catch (e: IllegalArgumentException) {
+            null
+        }
+    }
+    
+    /**
+     * Gets the dashboard figures for the last [weeks] weeks and [months] months, read from the rollups
+     */
+    fun getInsights(weeks: Int, months: Int): SessionInsights {
+        return aggregates.insights(SessionAggregates.epochDay(System.currentTimeMillis()), weeks, months)
     }
     
     companion object {
+        private const val TAG = "SessionManager"
         private const val PREFS_NAME = "breathe_deep_prefs"
         private const val SESSION_PREFIX = "session_"
         private const val SESSION_LIST_KEY = "session_list"
-        private const val TOTAL_MINUTES_KEY = "total_minutes"
-        private const val TOTAL_SESSIONS_KEY = "total_sessions"
-        private const val CURRENT_STREAK_KEY = "current_streak"
-        private const val LONGEST_STREAK_KEY = "longest_streak"
-        private const val LAST_STREAK_DAY_KEY = "last_streak_day"
+        private const val LOG_MIGRATED_KEY = "session_log_migrated"
+        private val LEGACY_AGGREGATE_KEYS = listOf(
+            "total_minutes",
+            "total_sessions",
+            "current_streak",
+            "longest_streak",
+            "last_streak_day"
+        )
+        private const val DISCARDED_SESSIONS_KEY = "discarded_sessions"
+        private const val PENDING_ORPHANS_KEY = "pending_orphan_sessions"
+        private const val CHECKPOINT_FILE = "session_checkpoint.bin"
+        private const val SECONDS_PER_MINUTE = 60
+        private const val IMPORT_BATCH = 256
+        private val DAY_MILLIS = TimeUnit.DAYS.toMillis(1)
+        private val MAX_ZONE_OFFSET_MILLIS = TimeUnit.HOURS.toMillis(18)
+        
+        /**
+         * How far apart callers are expected to checkpoint a running session
+         */
+        const val CHECKPOINT_INTERVAL_MILLIS = 10_000L
+        private const val RECOVERY_GRACE_MILLIS = CHECKPOINT_INTERVAL_MILLIS
+        private const val SESSION_LOG_FILE = "sessions.log"
+        private const val AGGREGATES_FILE = "session_aggregates.bin"
+        
+        // Rough heap cost of a decoded session and its strings; the cache holds about 1 MB of them
+        private const val SESSION_BYTES = 256
+        private const val FRAME_SUMMARY_BYTES = 40
+        private const val CACHE_MAX_BYTES = 1024 * 1024
     }
 }
 
@@ -241,32 +491,29 @@ data class SessionData(
     val startTime: Long,
     val durationMinutes: Int,
     val completed: Boolean,
-    val endTime: Long = 0
+    val endTime: Long = 0,
+    val technique: Int = 0,
+    val breathCount: Int = 0,
+    val interruptions: Int = 0,
+    val frameSummary: FrameSummary? = null,
+    val zoneOffsetSeconds: Int = UNKNOWN_ZONE_OFFSET,
+    val activeSeconds: Int = 0
 ) {
-    /**
-     * Converts the session data to JSON format
-     */
-    fun toJson(): String {
-        return "$id|$startTime|$durationMinutes|$completed|$endTime"
-    }
-    
     companion object {
         /**
-         * Creates a SessionData object from JSON
+         * Zone offset of sessions recorded before offsets were stored
          */
-        fun fromJson(json: String): SessionData? {
-            return try {
-                val parts = json.split("|")
-                SessionData(
-                    id = parts[0],
-                    startTime = parts[1].toLong(),
-                    durationMinutes = parts[2].toInt(),
-                    completed = parts[3].toBoolean(),
-                    endTime = parts[4].toLong()
-                )
-            } catch (e: Exception) {
-                null
-            }
-        }
+        const val UNKNOWN_ZONE_OFFSET = Int.MIN_VALUE
     }
 }
+
+/**
+ * Frame timing recorded while a session's animations ran
+ */
+data class FrameSummary(
+    val totalFrames: Int,
+    val droppedFrames: Int,
+    val p50Micros: Int,
+    val p95Micros: Int,
+    val p99Micros: Int
+)
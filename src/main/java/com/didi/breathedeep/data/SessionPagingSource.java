@@ -0,0 +1,73 @@
+package com.didi.breathedeep.data
+
+import androidx.paging.PagingConfig
+import androidx.paging.PagingSource
+import androidx.paging.PagingState
+import java.io.IOException
+
+/**
+ * Pages completed sessions from the session log, newest first.
+ *
+ * The key is a position in the newest-first ordering of sessions that started in
+ * [startInclusive, endExclusive), or of the sessions on [epochDay] when one is given.
+ * Only the requested window is decoded, except for a single day whose few sessions
+ * are read together, and the repository does the loading on the IO dispatcher.
+ */
+class SessionPagingSource(
+    private val repository: SessionRepository,
+    private val startInclusive: Long = Long.MIN_VALUE,
+    private val endExclusive: Long = Long.MAX_VALUE,
+    private val epochDay: Long? = null
+) : PagingSource<Int, SessionData>() {
+    
+    override val jumpingSupported: Boolean = true
+    
+    override suspend fun load(params: LoadParams<Int>): LoadResult<Int, SessionData> {
+        return try {
+            val daySessions = epochDay?.let { repository.sessionsOnDay(it) }
+            val total = daySessions?.size ?: repository.countSessionsBetween(startInclusive, endExclusive)
+            val requested = params.key ?: 0
+            val offset = when (params) {
+                // Prepend keys point at the end of the page being loaded
+                is LoadParams.Prepend -> maxOf(0, requested - params.loadSize)
+                else -> requested
+            }.coerceIn(0, total)
+            val limit = when (params) {
+                is LoadParams.Prepend -> requested - offset
+                else -> params.loadSize
+            }
+            
+            val sessions = daySessions?.subList(offset, minOf(total, offset + limit))
+                ?: repository.sessionsBetween(startInclusive, endExclusive, offset, limit)
+            val end = offset + sessions.size
+            LoadResult.Page(
+                data = sessions,
+                prevKey = if (offset > 0) offset else null,
+                nextKey = if (end < total) end else null,
+                itemsBefore = offset,
+                itemsAfter = maxOf(0, total - end)
+            )
+        } catch (e: IOException) {
+            LoadResult.Error(e)
+        }
+    }
+    
+    override fun getRefreshKey(state: PagingState<Int, SessionData>): Int? {
+        val anchor = state.anchorPosition ?: return null
+        return maxOf(0, anchor - state.config.initialLoadSize / 2)
+    }
+    
+    companion object {
+        private const val PAGE_SIZE = 30
+        
+        /**
+         * Paging configuration for the history list: small pages decoded ahead of the scroll position
+         */
+        val CONFIG = PagingConfig(
+            pageSize = PAGE_SIZE,
+            prefetchDistance = PAGE_SIZE,
+            initialLoadSize = PAGE_SIZE * 2,
+            enablePlaceholders = true
+        )
+    }
+}
@@ -0,0 +1,314 @@
+package com.didi.breathedeep.data
+
+import android.content.Context
+import android.util.Log
+import androidx.paging.InvalidatingPagingSourceFactory
+import androidx.paging.Pager
+import androidx.paging.PagingData
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.onCompletion
+import kotlinx.coroutines.flow.onStart
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.IOException
+import java.nio.channels.ReadableByteChannel
+import java.nio.channels.WritableByteChannel
+import java.util.concurrent.CopyOnWriteArraySet
+import java.util.concurrent.Executors
+
+/**
+ * Off-main-thread access to session data.
+ *
+ * Wraps [SessionManager] so that nothing touches disk on the caller's thread. All
+ * writes and aggregate reads go through a single writer thread, in submission order;
+ * log reads run on the IO dispatcher. Totals and history are exposed as flows that
+ * update after every write.
+ *
+ * There is one repository per process, shared through [getInstance], so the decoded
+ * sessions and totals it holds survive moving between screens.
+ */
+class SessionRepository private constructor(private val appContext: Context) {
+    
+    // Opening the manager reads the log and may migrate legacy prefs, so it is never done on the caller's thread
+    private val manager by lazy { SessionManager(appContext) }
+    
+    // Only touched on the writer thread
+    private var flushJob: Job? = null
+    
+    private val _stats = MutableStateFlow<SessionStats?>(null)
+    private val historyFactories = CopyOnWriteArraySet<InvalidatingPagingSourceFactory<Int, SessionData>>()
+    
+    /**
+     * Totals and streaks; null until the session store has been opened
+     */
+    val stats: StateFlow<SessionStats?> = _stats.asStateFlow()
+    
+    init {
+        scope.launch {
+            try {
+                publishStats()
+            } catch (e: IOException) {
+                // Surfaces again, to a caller that can handle it, on the next read or write
+                Log.w(TAG, "Could not open session store", e)
+            }
+        }
+    }
+    
+    /**
+     * Opens the session store, running any migration or aggregate repair, and returns the totals.
+     * Lets startup do this work in parallel with everything else instead of on first use.
+     * Like every write below, throws [IOException] if the store cannot be read or written.
+     */
+    suspend fun open(): SessionStats {
+        return write { publishStats() }
+    }
+    
+    /**
+     * Records the start of a new meditation session
+     */
+    suspend fun startSession(durationMinutes: Int, technique: Int = 0) {
+        write {
+            manager.startSession(durationMinutes, technique)
+            scheduleFlush()
+        }
+    }
+    
+    /**
+     * Marks the current session as completed and returns the updated totals
+     */
+    suspend fun completeSession(frameSummary: FrameSummary? = null): SessionStats {
+        return write {
+            manager.completeSession(frameSummary)
+            scheduleFlush()
+            invalidateHistory()
+            publishStats()
+        }
+    }
+    
+    /**
+     * Records how much of the running session has elapsed, for recovery if the process dies.
+     * Safe to call from the main thread; the write is a single in-place overwrite.
+     */
+    fun checkpoint(activeMillis: Long) {
+        scope.launch {
+            try {
+                manager.checkpoint(activeMillis)
+            } catch (e: IOException) {
+                // A missed checkpoint only costs precision if the process dies; the next one retries
+                Log.w(TAG, "Could not checkpoint session", e)
+            }
+        }
+    }
+    
+    /**
+     * Finalizes the running session as partial after the user ended it early
+     */
+    suspend fun abandonSession(activeMillis: Long) {
+        write { manager.abandonSession(activeMillis) }
+    }
+    
+    /**
+     * Writes pending aggregate changes now instead of waiting for the write-behind window.
+     * Safe to call from the main thread, e.g. in onPause.
+     */
+    fun flush() {
+        scope.launch {
+            flushJob?.cancel()
+            flushJob = null
+            flushAggregates()
+        }
+    }
+    
+    /**
+     * Streams every recorded session to [channel] and returns how many were written.
+     * Runs on the IO dispatcher, so a slow destination never holds up session writes;
+     * sessions saved while the export runs may or may not be included.
+     */
+    suspend fun exportSessions(format: ArchiveFormat, channel: WritableByteChannel): Int {
+        return withContext(Dispatchers.IO) {
+            SessionArchive.export(format, channel) { action -> manager.forEachSession(action) }
+        }
+    }
+    
+    /**
+     * Adds the sessions in an archive of either format, skipping ids already recorded,
+     * and returns how many were added. Throws [SessionFormatException] for a malformed file.
+     */
+    suspend fun importSessions(channel: ReadableByteChannel): Int {
+        return write {
+            val imported = manager.importSessions { action -> SessionArchive.import(channel, action) }
+            if (imported > 0) {
+                invalidateHistory()
+                publishStats()
+            }
+            imported
+        }
+    }
+    
+    /**
+     * Gets the minutes meditated on a local epoch day
+     */
+    suspend fun minutesOnDay(epochDay: Long): Int {
+        return withContext(writeDispatcher) { manager.getMinutesOnDay(epochDay) }
+    }
+    
+    /**
+     * Gets the minutes meditated on each of [dayCount] consecutive local epoch days from [firstDay],
+     * e.g. to highlight a calendar month
+     */
+    suspend fun minutesBetween(firstDay: Long, dayCount: Int): IntArray {
+        return withContext(writeDispatcher) { manager.getMinutesBetween(firstDay, dayCount) }
+    }
+    
+    /**
+     * Gets weekly and monthly minutes, time-of-day distribution, completion rate and average length
+     */
+    suspend fun insights(weeks: Int = DEFAULT_INSIGHT_WEEKS, months: Int = DEFAULT_INSIGHT_MONTHS): SessionInsights {
+        return withContext(writeDispatcher) { manager.getInsights(weeks, months) }
+    }
+    
+    /**
+     * Gets a newest-first window of the completed sessions that started in [startInclusive, endExclusive)
+     */
+    suspend fun sessionsBetween(startInclusive: Long, endExclusive: Long, offset: Int, limit: Int): List<SessionData> {
+        return withContext(Dispatchers.IO) { manager.sessionsBetween(startInclusive, endExclusive, offset, limit) }
+    }
+    
+    /**
+     * Gets the completed sessions of a local epoch day, as highlighted by the calendar, newest first
+     */
+    suspend fun sessionsOnDay(epochDay: Long): List<SessionData> {
+        return withContext(Dispatchers.IO) { manager.sessionsOnDay(epochDay) }
+    }
+    
+    /**
+     * Counts completed sessions that started in [startInclusive, endExclusive)
+     */
+    suspend fun countSessionsBetween(startInclusive: Long, endExclusive: Long): Int {
+        return withContext(Dispatchers.IO) { manager.countSessionsBetween(startInclusive, endExclusive) }
+    }
+    
+    /**
+     * Pages completed sessions that started in [startInclusive, endExclusive), newest first.
+     * The pages are reloaded whenever a session is completed.
+     */
+    fun history(
+        startInclusive: Long = Long.MIN_VALUE,
+        endExclusive: Long = Long.MAX_VALUE
+    ): Flow<PagingData<SessionData>> {
+        return pages(InvalidatingPagingSourceFactory {
+            SessionPagingSource(this, startInclusive, endExclusive)
+        })
+    }
+    
+    /**
+     * Pages the completed sessions of a local epoch day, the same day key the calendar
+     * highlights by, newest first. Reloaded like [history].
+     */
+    fun dayHistory(epochDay: Long): Flow<PagingData<SessionData>> {
+        return pages(InvalidatingPagingSourceFactory {
+            SessionPagingSource(this, epochDay = epochDay)
+        })
+    }
+    
+    private fun pages(
+        factory: InvalidatingPagingSourceFactory<Int, SessionData>
+    ): Flow<PagingData<SessionData>> {
+        return Pager(SessionPagingSource.CONFIG, pagingSourceFactory = factory).flow
+            .onStart { historyFactories.add(factory) }
+            .onCompletion { historyFactories.remove(factory) }
+    }
+    
+    /**
+     * Runs a write on the writer thread. The write finishes even if the caller is cancelled,
+     * e.g. because the activity that started it was destroyed.
+     */
+    private suspend fun <T> write(block: () -> T): T {
+        return scope.async { block() }.await()
+    }
+    
+    /**
+     * Coalesces aggregate writes: changes made within [WRITE_BEHIND_MILLIS] of each other
+     * are saved together. Nothing is lost if the process dies first, because the
+     * aggregates are rebuilt from the log when they disagree with it.
+     */
+    private fun scheduleFlush() {
+        if (flushJob?.isActive == true) return
+        flushJob = scope.launch {
+            delay(WRITE_BEHIND_MILLIS)
+            flushAggregates()
+        }
+    }
+    
+    /**
+     * Saves dirty aggregates. A failure, such as a full disk, is only logged: the changes stay
+     * dirty so the next flush retries, and the log still holds everything they derive from.
+     */
+    private fun flushAggregates() {
+        try {
+            manager.flush()
+        } catch (e: IOException) {
+            Log.w(TAG, "Could not save session aggregates", e)
+        }
+    }
+    
+    private fun publishStats(): SessionStats {
+        val stats = SessionStats(
+            totalMinutes = manager.getTotalMinutes(),
+            totalSessions = manager.getTotalSessions(),
+            currentStreak = manager.getCurrentStreak(),
+            longestStreak = manager.getLongestStreak()
+        )
+        _stats.value = stats
+        return stats
+    }
+    
+    private fun invalidateHistory() {
+        historyFactories.forEach { it.invalidate() }
+    }
+    
+    companion object {
+        private const val TAG = "SessionRepository"
+        private const val WRITE_BEHIND_MILLIS = 2000L
+        private const val DEFAULT_INSIGHT_WEEKS = 12
+        private const val DEFAULT_INSIGHT_MONTHS = 12
+        
+        @Volatile
+        private var instance: SessionRepository? = null
+        
+        /**
+         * The process-wide repository
+         */
+        fun getInstance(context: Context): SessionRepository {
+            return instance ?: synchronized(this) {
+                instance ?: SessionRepository(context.applicationContext).also { instance = it }
+            }
+        }
+        
+        // One writer thread for the whole process, so writes from any screen are serialized
+        private val writeDispatcher = Executors.newSingleThreadExecutor { runnable ->
+            Thread(runnable, "session-writer").apply { isDaemon = true }
+        }.asCoroutineDispatcher()
+        private val scope = CoroutineScope(SupervisorJob() + writeDispatcher)
+    }
+}
+
+/**
+ * Snapshot of the session totals and streaks
+ */
+data class SessionStats(
+    val totalMinutes: Int,
+    val totalSessions: Int,
+    val currentStreak: Int,
+    val longestStreak: Int
+)
@@ -0,0 +1,113 @@
+package com.didi.breathedeep.data
+
+/**
+ * Start-time index over completed sessions.
+ *
+ * Start times are kept in a sorted primitive array alongside the matching session
+ * ids, so a range query is a binary search plus a walk over the k matches.
+ */
+class SessionTimeIndex {
+    
+    private var startTimes = LongArray(INITIAL_CAPACITY)
+    private var ids = arrayOfNulls<String>(INITIAL_CAPACITY)
+    private var size = 0
+    
+    /**
+     * Number of indexed sessions
+     */
+    @Synchronized
+    fun size(): Int = size
+    
+    /**
+     * Adds a session; appending in start-time order is amortized O(1)
+     */
+    @Synchronized
+    fun add(startTime: Long, id: String) {
+        ensureCapacity(size + 1)
+        val position = upperBound(startTime)
+        if (position < size) {
+            System.arraycopy(startTimes, position, startTimes, position + 1, size - position)
+            System.arraycopy(ids, position, ids, position + 1, size - position)
+        }
+        startTimes[position] = startTime
+        ids[position] = id
+        size++
+    }
+    
+    /**
+     * Removes every entry
+     */
+    @Synchronized
+    fun clear() {
+        ids.fill(null, 0, size)
+        size = 0
+    }
+    
+    /**
+     * Number of sessions that started in [startInclusive, endExclusive)
+     */
+    @Synchronized
+    fun countBetween(startInclusive: Long, endExclusive: Long): Int {
+        return maxOf(0, lowerBound(endExclusive) - lowerBound(startInclusive))
+    }
+    
+    /**
+     * Ids of sessions that started in [startInclusive, endExclusive), newest first.
+     * [offset] and [limit] select a window of that newest-first ordering.
+     */
+    @Synchronized
+    fun idsBetween(
+        startInclusive: Long,
+        endExclusive: Long,
+        offset: Int = 0,
+        limit: Int = Int.MAX_VALUE
+    ): List<String> {
+        val from = lowerBound(startInclusive)
+        val newest = lowerBound(endExclusive) - 1 - offset
+        if (newest < from || limit <= 0) return emptyList()
+        
+        val oldest = maxOf(from, newest - limit + 1)
+        val result = ArrayList<String>(newest - oldest + 1)
+        for (i in newest downTo oldest) {
+            result.add(ids[i]!!)
+        }
+        return result
+    }
+    
+    /**
+     * First position whose start time is >= the given time
+     */
+    private fun lowerBound(time: Long): Int {
+        var low = 0
+        var high = size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (startTimes[mid] < time) low = mid + 1 else high = mid
+        }
+        return low
+    }
+    
+    /**
+     * First position whose start time is > the given time
+     */
+    private fun upperBound(time: Long): Int {
+        var low = 0
+        var high = size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (startTimes[mid] <= time) low = mid + 1 else high = mid
+        }
+        return low
+    }
+    
+    private fun ensureCapacity(required: Int) {
+        if (required <= startTimes.size) return
+        val capacity = maxOf(required, startTimes.size * 2)
+        startTimes = startTimes.copyOf(capacity)
+        ids = ids.copyOf(capacity)
+    }
+    
+    companion object {
+        private const val INITIAL_CAPACITY = 64
+    }
+}
@@ -0,0 +1,99 @@
+package com.didi.breathedeep.data
+
+/**
+ * Current and longest streaks of consecutive practice days.
+ *
+ * Works on local epoch day numbers, so year ends, leap days and DST changes need no
+ * special cases; which day a session belongs to is decided once, in the zone the
+ * session was started in (see [SessionAggregates.epochDay]). Days arriving in order
+ * cost O(1). A backfilled day, such as an imported session, is resolved by scanning
+ * only the run of occupied days around it in [days].
+ */
+class StreakEngine(private val days: DayOccupancyIndex) {
+    
+    /**
+     * The latest practice day, or [NO_DAY] if there is none
+     */
+    var lastDay: Long = NO_DAY
+        private set
+    
+    /**
+     * Length of the run of consecutive days ending on [lastDay]
+     */
+    var runLength: Int = 0
+        private set
+    
+    /**
+     * Length of the longest run of consecutive days
+     */
+    var longest: Int = 0
+        private set
+    
+    /**
+     * Folds in a day that has just become occupied in [days]; days that were already
+     * occupied must not be passed again
+     */
+    fun onDayAdded(day: Long) {
+        when {
+            lastDay == NO_DAY || day > lastDay + 1 -> {
+                lastDay = day
+                runLength = 1
+            }
+            day == lastDay + 1 -> {
+                lastDay = day
+                runLength++
+            }
+            else -> {
+                // Backfill: the day may join the runs on either side of it
+                val after = countOccupied(day + 1, 1)
+                val run = countOccupied(day - 1, -1) + 1 + after
+                if (day + after == lastDay) {
+                    runLength = run
+                }
+                longest = maxOf(longest, run)
+            }
+        }
+        longest = maxOf(longest, runLength)
+    }
+    
+    /**
+     * The streak as seen on [today]: the run ending on [lastDay] if that was today or
+     * yesterday, otherwise zero because the streak has been broken
+     */
+    fun currentStreak(today: Long): Int {
+        return if (lastDay != NO_DAY && today - lastDay <= 1) runLength else 0
+    }
+    
+    /**
+     * Restores state saved from [lastDay], [runLength] and [longest]
+     */
+    fun restore(lastDay: Long, runLength: Int, longest: Int) {
+        this.lastDay = lastDay
+        this.runLength = runLength
+        this.longest = longest
+    }
+    
+    /**
+     * Forgets all state; the day index is cleared by its owner
+     */
+    fun clear() {
+        restore(NO_DAY, 0, 0)
+    }
+    
+    /**
+     * Counts consecutive occupied days from [start] walking in [step] direction
+     */
+    private fun countOccupied(start: Long, step: Int): Int {
+        var count = 0
+        var day = start
+        while (days.isOccupied(day)) {
+            count++
+            day += step
+        }
+        return count
+    }
+    
+    companion object {
+        const val NO_DAY = Long.MIN_VALUE
+    }
+}
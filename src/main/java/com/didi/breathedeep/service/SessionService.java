@@ -0,0 +1,415 @@
+package com.didi.breathedeep.service
+
+import android.app.Notification
+import android.app.NotificationChannel
+import android.app.NotificationManager
+import android.app.PendingIntent
+import android.content.Context
+import android.content.Intent
+import android.content.pm.ServiceInfo
+import android.os.Binder
+import android.os.Build
+import android.os.Handler
+import android.os.IBinder
+import android.os.Looper
+import android.os.PowerManager
+import android.util.Log
+import androidx.core.app.NotificationCompat
+import androidx.core.content.ContextCompat
+import androidx.lifecycle.LifecycleService
+import androidx.lifecycle.lifecycleScope
+import com.didi.breathedeep.R
+import com.didi.breathedeep.data.FrameSummary
+import com.didi.breathedeep.data.SessionManager
+import com.didi.breathedeep.data.SessionRepository
+import com.didi.breathedeep.data.SessionStats
+import com.didi.breathedeep.ui.SessionActivity
+import com.didi.breathedeep.ui.SessionCompleteActivity
+import com.didi.breathedeep.util.AudioManager
+import com.didi.breathedeep.util.BreathPhase
+import com.didi.breathedeep.util.BreathingPattern
+import com.didi.breathedeep.util.BreathingTable
+import com.didi.breathedeep.util.SessionTimer
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.launch
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+
+/**
+ * States a session moves through; a service runs at most one session
+ */
+enum class SessionState {
+    IDLE,
+    RUNNING,
+    PAUSED,
+    COMPLETED,
+    CANCELLED
+}
+
+/**
+ * Foreground service that runs a meditation session.
+ *
+ * The service owns the timer, the audio and the completion bookkeeping, so a session
+ * keeps going with the screen off, across configuration changes and while the app is
+ * in the background. [SessionActivity] binds to it only to render the session.
+ */
+class SessionService : LifecycleService() {
+    
+    private lateinit var repository: SessionRepository
+    private lateinit var audioManager: AudioManager
+    private lateinit var wakeLock: PowerManager.WakeLock
+    private val binder = LocalBinder()
+    private val handler = Handler(Looper.getMainLooper())
+    private val cueRunnable = Runnable { playPhaseCue() }
+    private val checkpointRunnable = object : Runnable {
+        override fun run() {
+            if (_state.value != SessionState.RUNNING) return
+            saveCheckpoint()
+            handler.postDelayed(this, SessionManager.CHECKPOINT_INTERVAL_MILLIS)
+        }
+    }
+    
+    private val _state = MutableStateFlow(SessionState.IDLE)
+    private val _remainingMillis = MutableStateFlow(0L)
+    private val _result = MutableStateFlow<SessionStats?>(null)
+    
+    /**
+     * Current position in the session lifecycle
+     */
+    val state: StateFlow<SessionState> = _state.asStateFlow()
+    
+    /**
+     * Time left in the session, updated once a second
+     */
+    val remainingMillis: StateFlow<Long> = _remainingMillis.asStateFlow()
+    
+    /**
+     * Totals after the session was recorded, once it has completed
+     */
+    val result: StateFlow<SessionStats?> = _result.asStateFlow()
+    
+    var durationMinutes: Int = 0
+        private set
+    
+    /**
+     * Breathing pattern of the current session, compiled for per-frame lookups
+     */
+    var breathing: BreathingTable = BreathingPattern.STEADY.compile()
+        private set
+    
+    /**
+     * Active session time, or null before a session starts
+     */
+    var timer: SessionTimer? = null
+        private set
+    
+    /**
+     * Supplies frame timing to store with the session while an activity is rendering it
+     */
+    var frameSummarySource: (() -> FrameSummary)? = null
+    
+    /**
+     * Whether a session screen is started and will show the outcome itself; a bound but
+     * stopped activity does not count
+     */
+    var activityStarted = false
+    
+    inner class LocalBinder : Binder() {
+        val service: SessionService
+            get() = this@SessionService
+    }
+    
+    override fun onCreate() {
+        super.onCreate()
+        repository = SessionRepository.getInstance(this)
+        audioManager = AudioManager(this)
+        // Handler delays run on uptime, which stops while the CPU sleeps with the screen off
+        wakeLock = (getSystemService(Context.POWER_SERVICE) as PowerManager)
+            .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, WAKE_LOCK_TAG)
+            .apply { setReferenceCounted(false) }
+        // Decode while the start command is on its way so playback begins immediately
+        audioManager.preload(R.raw.meditation_loop)
+    }
+    
+    override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
+        super.onStartCommand(intent, flags, startId)
+        if (intent?.action == ACTION_START) {
+            start(
+                intent.getIntExtra(EXTRA_DURATION_MINUTES, 5),
+                BreathingPattern.fromIntArray(intent.getIntArrayExtra(EXTRA_PATTERN))
+            )
+        }
+        return START_NOT_STICKY
+    }
+    
+    override fun onBind(intent: Intent): IBinder {
+        super.onBind(intent)
+        return binder
+    }
+    
+    /**
+     * Starts a session; ignored while one is running or paused
+     */
+    private fun start(durationMinutes: Int, pattern: BreathingPattern) {
+        if (_state.value == SessionState.RUNNING || _state.value == SessionState.PAUSED) return
+        _result.value = null
+        this.durationMinutes = durationMinutes
+        breathing = pattern.compile()
+        val durationMillis = TimeUnit.MINUTES.toMillis(durationMinutes.toLong())
+        _remainingMillis.value = durationMillis
+        startForegroundCompat()
+        
+        timer = SessionTimer(durationMillis, object : SessionTimer.Listener {
+            override fun onSecond(remainingMillis: Long) {
+                _remainingMillis.value = remainingMillis
+            }
+            
+            override fun onFinish() = complete()
+        })
+        
+        // One short track loops for the whole session, whatever its length
+        audioManager.playAudio(R.raw.meditation_loop)
+        
+        timer?.start()
+        _state.value = SessionState.RUNNING
+        acquireWakeLock()
+        scheduleCue()
+        scheduleCheckpoints()
+        
+        // Record session start
+        lifecycleScope.launch {
+            try {
+                repository.startSession(durationMinutes, pattern.id)
+            } catch (e: IOException) {
+                // The session still runs; it just won't count as started
+                Log.w(TAG, "Could not record session start", e)
+            }
+        }
+    }
+    
+    fun pause() {
+        if (_state.value != SessionState.RUNNING) return
+        timer?.pause()
+        handler.removeCallbacks(cueRunnable)
+        handler.removeCallbacks(checkpointRunnable)
+        saveCheckpoint()
+        audioManager.pauseAudio()
+        _state.value = SessionState.PAUSED
+        releaseWakeLock()
+    }
+    
+    fun resume() {
+        if (_state.value != SessionState.PAUSED) return
+        timer?.start()
+        audioManager.resumeAudio()
+        _state.value = SessionState.RUNNING
+        acquireWakeLock()
+        scheduleCue()
+        scheduleCheckpoints()
+    }
+    
+    /**
+     * Ends the session early, recording it as partial with the time it ran
+     */
+    fun cancel() {
+        if (_state.value != SessionState.RUNNING && _state.value != SessionState.PAUSED) return
+        timer?.pause()
+        handler.removeCallbacks(cueRunnable)
+        handler.removeCallbacks(checkpointRunnable)
+        audioManager.stopAudio()
+        _state.value = SessionState.CANCELLED
+        val activeMillis = timer?.elapsedMillis() ?: 0L
+        // Queued ahead of the abandon on the writer, so a failed abandon leaves the exact active time behind
+        repository.checkpoint(activeMillis)
+        lifecycleScope.launch {
+            try {
+                repository.abandonSession(activeMillis)
+            } catch (e: IOException) {
+                // The checkpoint is only cleared once the abandon is written, so the next start's
+                // recovery still finalizes the session from it instead of discarding it as an orphan
+                Log.w(TAG, "Could not record cancelled session", e)
+            }
+        }
+        stopSession()
+    }
+    
+    private fun complete() {
+        handler.removeCallbacks(cueRunnable)
+        handler.removeCallbacks(checkpointRunnable)
+        audioManager.stopAudio()
+        val frameSummary = frameSummarySource?.invoke()
+        _state.value = SessionState.COMPLETED
+        
+        lifecycleScope.launch {
+            // Record session completion
+            val stats = try {
+                repository.completeSession(frameSummary)
+            } catch (e: IOException) {
+                // Still finish the session for the user, with the totals from before it
+                Log.w(TAG, "Could not record session completion", e)
+                repository.stats.value ?: SessionStats(0, 0, 0, 0)
+            }
+            _result.value = stats
+            if (!activityStarted) {
+                // Nobody is watching; leave a way back to the completion screen
+                notifyCompleted(stats)
+            }
+            stopSession()
+        }
+    }
+    
+    private fun stopSession() {
+        releaseWakeLock()
+        repository.flush()
+        stopForegroundCompat()
+        // Stays alive while an activity is still bound to read the outcome
+        stopSelf()
+    }
+    
+    /**
+     * Checkpoints the running session now and then every [SessionManager.CHECKPOINT_INTERVAL_MILLIS]
+     */
+    private fun scheduleCheckpoints() {
+        handler.removeCallbacks(checkpointRunnable)
+        handler.post(checkpointRunnable)
+    }
+    
+    private fun saveCheckpoint() {
+        timer?.let { repository.checkpoint(it.elapsedMillis()) }
+    }
+    
+    /**
+     * Keeps the CPU awake until the session is due to end, so the timer, cues and checkpoints
+     * fire on time with the screen off; the timeout covers a session that is never released
+     */
+    private fun acquireWakeLock() {
+        val remaining = timer?.remainingMillis() ?: return
+        wakeLock.acquire(remaining + WAKE_LOCK_GRACE_MILLIS)
+    }
+    
+    private fun releaseWakeLock() {
+        if (wakeLock.isHeld) wakeLock.release()
+    }
+    
+    /**
+     * Posts the cue for the next phase change of the breathing pattern
+     */
+    private fun scheduleCue() {
+        val elapsed = timer?.elapsedMillis() ?: return
+        handler.removeCallbacks(cueRunnable)
+        handler.postDelayed(cueRunnable, breathing.millisUntilNextPhase(elapsed + CUE_TOLERANCE_MS) + CUE_TOLERANCE_MS)
+    }
+    
+    private fun playPhaseCue() {
+        if (_state.value != SessionState.RUNNING) return
+        val elapsed = timer?.elapsedMillis() ?: return
+        // The handler and the timer round differently; a cue can land a few ms either side
+        when (breathing.phaseAt(elapsed + CUE_TOLERANCE_MS)) {
+            BreathPhase.INHALE, BreathPhase.EXHALE -> audioManager.playCue(R.raw.breath_cue)
+            BreathPhase.HOLD_IN, BreathPhase.HOLD_OUT -> Unit
+        }
+        scheduleCue()
+    }
+    
+    override fun onDestroy() {
+        handler.removeCallbacks(cueRunnable)
+        handler.removeCallbacks(checkpointRunnable)
+        timer?.pause()
+        releaseWakeLock()
+        audioManager.releaseAudio()
+        repository.flush()
+        super.onDestroy()
+    }
+    
+    private fun startForegroundCompat() {
+        val notification = buildNotification(
+            getString(R.string.session_in_progress),
+            PendingIntent.getActivity(
+                this,
+                0,
+                Intent(this, SessionActivity::class.java).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP),
+                PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
+            )
+        )
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_MEDIA_PLAYBACK)
+        } else {
+            startForeground(NOTIFICATION_ID, notification)
+        }
+    }
+    
+    @Suppress("DEPRECATION")
+    private fun stopForegroundCompat() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            stopForeground(STOP_FOREGROUND_REMOVE)
+        } else {
+            stopForeground(true)
+        }
+    }
+    
+    private fun notifyCompleted(stats: SessionStats) {
+        val intent = Intent(this, SessionCompleteActivity::class.java).apply {
+            putExtra("DURATION_MINUTES", durationMinutes)
+            putExtra("TOTAL_MINUTES", stats.totalMinutes)
+        }
+        val notification = buildNotification(
+            getString(R.string.session_complete),
+            PendingIntent.getActivity(
+                this,
+                0,
+                intent,
+                PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
+            )
+        )
+        val manager = getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
+        manager.notify(COMPLETED_NOTIFICATION_ID, notification)
+    }
+    
+    private fun buildNotification(title: String, contentIntent: PendingIntent): Notification {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            val manager = getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
+            manager.createNotificationChannel(
+                NotificationChannel(
+                    CHANNEL_ID,
+                    getString(R.string.session_notification_channel),
+                    NotificationManager.IMPORTANCE_LOW
+                )
+            )
+        }
+        return NotificationCompat.Builder(this, CHANNEL_ID)
+            .setContentTitle(title)
+            .setContentText(getString(R.string.app_name))
+            .setSmallIcon(R.drawable.ic_play)
+            .setContentIntent(contentIntent)
+            .setOngoing(_state.value != SessionState.COMPLETED)
+            .setAutoCancel(_state.value == SessionState.COMPLETED)
+            .build()
+    }
+    
+    companion object {
+        private const val TAG = "SessionService"
+        private const val ACTION_START = "com.didi.breathedeep.action.START_SESSION"
+        private const val EXTRA_DURATION_MINUTES = "DURATION_MINUTES"
+        private const val EXTRA_PATTERN = "BREATHING_PATTERN"
+        private const val CUE_TOLERANCE_MS = 20L
+        private const val WAKE_LOCK_TAG = "BreatheDeep:session"
+        private const val WAKE_LOCK_GRACE_MILLIS = 60_000L
+        private const val CHANNEL_ID = "session"
+        private const val NOTIFICATION_ID = 1
+        private const val COMPLETED_NOTIFICATION_ID = 2
+        
+        /**
+         * Starts a session in the foreground service
+         */
+        fun start(context: Context, durationMinutes: Int, pattern: BreathingPattern) {
+            val intent = Intent(context, SessionService::class.java).apply {
+                action = ACTION_START
+                putExtra(EXTRA_DURATION_MINUTES, durationMinutes)
+                putExtra(EXTRA_PATTERN, pattern.toIntArray())
+            }
+            ContextCompat.startForegroundService(context, intent)
+        }
+    }
+}
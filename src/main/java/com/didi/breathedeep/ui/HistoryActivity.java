@@ -1,29 +1,63 @@
 package com.didi.breathedeep.ui
 
 import android.content.Intent
+import android.net.Uri
 import android.os.Bundle
 import android.view.View
+import android.widget.Toast
+import androidx.activity.result.contract.ActivityResultContracts
+import androidx.appcompat.app.AlertDialog
 import androidx.appcompat.app.AppCompatActivity
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.lifecycleScope
+import androidx.lifecycle.repeatOnLifecycle
+import androidx.paging.CombinedLoadStates
+import androidx.paging.LoadState
+import androidx.paging.PagingData
+import androidx.paging.PagingDataAdapter
 import androidx.recyclerview.widget.LinearLayoutManager
 import com.didi.breathedeep.R
+import com.didi.breathedeep.data.ArchiveFormat
 import com.didi.breathedeep.data.SessionData
-import com.didi.breathedeep.data.SessionManager
+import com.didi.breathedeep.data.SessionRepository
 import com.didi.breathedeep.databinding.ActivityHistoryBinding
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.collectLatest
+import kotlinx.coroutines.flow.filterNotNull
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
 import java.text.SimpleDateFormat
 import java.util.*
 
 class HistoryActivity : AppCompatActivity() {
 
     private lateinit var binding: ActivityHistoryBinding
-    private lateinit var sessionManager: SessionManager
+    private lateinit var repository: SessionRepository
     private lateinit var sessionAdapter: SessionAdapter
+    private var sessionsJob: Job? = null
+    
+    // Storage Access Framework pickers for backing history up and restoring it
+    private val exportCsvLauncher = registerForActivityResult(
+        ActivityResultContracts.CreateDocument(ArchiveFormat.CSV.mimeType)
+    ) { uri -> uri?.let { exportSessions(it, ArchiveFormat.CSV) } }
+    private val exportBinaryLauncher = registerForActivityResult(
+        ActivityResultContracts.CreateDocument(ArchiveFormat.BINARY.mimeType)
+    ) { uri -> uri?.let { exportSessions(it, ArchiveFormat.BINARY) } }
+    private val importLauncher = registerForActivityResult(
+        ActivityResultContracts.OpenDocument()
+    ) { uri -> uri?.let { importSessions(it) } }
     
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         binding = ActivityHistoryBinding.inflate(layoutInflater)
         setContentView(binding.root)
         
-        sessionManager = SessionManager(this)
+        repository = SessionRepository.getInstance(this)
         
         setupUI()
         setupListeners()
@@ -37,6 +71,7 @@ class HistoryActivity : AppCompatActivity() {
             layoutManager = LinearLayoutManager(this@HistoryActivity)
             adapter = sessionAdapter
         }
+        sessionAdapter.addLoadStateListener { updateEmptyState(it) }
         
         // Setup bottom navigation
         binding.bottomNavigation.selectedItemId = R.id.navigation_history
@@ -44,10 +79,11 @@ class HistoryActivity : AppCompatActivity() {
     
     private fun setupListeners() {
         // Setup calendar date selection
-        binding.calendarView.setOnDateChangeListener { _, year, month, dayOfMonth ->
-            val calendar = Calendar.getInstance()
-            calendar.set(year, month, dayOfMonth)
-            loadSessionsForDate(calendar.timeInMillis)
+        binding.calendarView.onDaySelected = { epochDay -> loadSessionsForDay(epochDay) }
+        binding.calendarView.onMonthChanged = { firstDay, dayCount -> highlightSessionDates(firstDay, dayCount) }
+        
+        binding.btnBackup.setOnClickListener {
+            showBackupDialog()
         }
         
         // Setup bottom navigation
@@ -70,63 +106,137 @@ class HistoryActivity : AppCompatActivity() {
     }
     
     private fun loadSessionData() {
-        // Load total stats
-        binding.tvTotalMinutes.text = sessionManager.getTotalMinutes().toString()
-        binding.tvTotalSessions.text = sessionManager.getTotalSessions().toString()
-        
-        // Load recent sessions
-        val sessions = sessionManager.getCompletedSessions()
-        if (sessions.isEmpty()) {
-            binding.tvNoSessions.visibility = View.VISIBLE
-            binding.rvRecentSessions.visibility = View.GONE
-        } else {
-            binding.tvNoSessions.visibility = View.GONE
-            binding.rvRecentSessions.visibility = View.VISIBLE
-            sessionAdapter.submitList(sessions)
+        // Observe total stats
+        lifecycleScope.launch {
+            repeatOnLifecycle(Lifecycle.State.STARTED) {
+                repository.stats.filterNotNull().collect { stats ->
+                    binding.tvTotalMinutes.text = stats.totalMinutes.toString()
+                    binding.tvTotalSessions.text = stats.totalSessions.toString()
+                    
+                    // Highlight calendar dates with sessions, again after each completion
+                    highlightSessionDates(binding.calendarView.firstDayShown, binding.calendarView.daysShown)
+                }
+            }
         }
         
-        // Highlight calendar dates with sessions
-        highlightSessionDates(sessions)
-    }
-    
-    private fun loadSessionsForDate(date: Long) {
-        val calendar = Calendar.getInstance()
-        calendar.timeInMillis = date
-        calendar.set(Calendar.HOUR_OF_DAY, 0)
-        calendar.set(Calendar.MINUTE, 0)
-        calendar.set(Calendar.SECOND, 0)
-        calendar.set(Calendar.MILLISECOND, 0)
-        val startOfDay = calendar.timeInMillis
-        
-        calendar.add(Calendar.DAY_OF_MONTH, 1)
-        val endOfDay = calendar.timeInMillis
-        
-        val sessions = sessionManager.getCompletedSessions().filter { 
-            it.startTime >= startOfDay && it.startTime < endOfDay 
+        // Load recent sessions
+        showSessions(repository.history())
+    }
+    
+    /**
+     * Lists the sessions of a tapped day, keyed by day the same way as the highlights
+     */
+    private fun loadSessionsForDay(epochDay: Long) {
+        showSessions(repository.dayHistory(epochDay))
+    }
+    
+    /**
+     * Pages completed sessions into the list
+     */
+    private fun showSessions(history: Flow<PagingData<SessionData>>) {
+        sessionsJob?.cancel()
+        sessionsJob = lifecycleScope.launch {
+            history.collectLatest { pagingData ->
+                sessionAdapter.submitData(pagingData)
+            }
         }
+    }
+    
+    private fun updateEmptyState(loadStates: CombinedLoadStates) {
+        if (loadStates.refresh !is LoadState.NotLoading) return
         
-        if (sessions.isEmpty()) {
+        if (sessionAdapter.itemCount == 0) {
             binding.tvNoSessions.visibility = View.VISIBLE
             binding.rvRecentSessions.visibility = View.GONE
         } else {
             binding.tvNoSessions.visibility = View.GONE
             binding.rvRecentSessions.visibility = View.VISIBLE
-            sessionAdapter.submitList(sessions)
         }
     }
     
-    private fun highlightSessionDates(sessions: List<SessionData>) {
-        // This would be implemented to highlight dates in the calendar
-        // that have completed sessions
-        // For a real implementation, we would need to extend CalendarView
-        // or use a third-party calendar library that supports date highlighting
+    private fun showBackupDialog() {
+        val options = arrayOf(
+            getString(R.string.export_csv),
+            getString(R.string.export_backup),
+            getString(R.string.import_history)
+        )
+        AlertDialog.Builder(this)
+            .setTitle(R.string.backup)
+            .setItems(options) { _, which ->
+                when (which) {
+                    0 -> exportCsvLauncher.launch(archiveFileName(ArchiveFormat.CSV))
+                    1 -> exportBinaryLauncher.launch(archiveFileName(ArchiveFormat.BINARY))
+                    else -> importLauncher.launch(arrayOf("text/*", ArchiveFormat.BINARY.mimeType))
+                }
+            }
+            .show()
+    }
+    
+    private fun archiveFileName(format: ArchiveFormat): String {
+        val date = SimpleDateFormat("yyyy-MM-dd", Locale.US).format(Date())
+        return "breathe_deep_sessions_$date.${format.extension}"
+    }
+    
+    /**
+     * Streams the whole history into the chosen document
+     */
+    private fun exportSessions(uri: Uri, format: ArchiveFormat) {
+        lifecycleScope.launch {
+            val message = try {
+                val count = withContext(Dispatchers.IO) {
+                    val descriptor = contentResolver.openFileDescriptor(uri, "wt")
+                        ?: throw IOException("Could not open $uri")
+                    descriptor.use {
+                        FileOutputStream(it.fileDescriptor).channel.use { channel ->
+                            repository.exportSessions(format, channel)
+                        }
+                    }
+                }
+                resources.getQuantityString(R.plurals.export_done, count, count)
+            } catch (e: IOException) {
+                getString(R.string.export_failed)
+            }
+            Toast.makeText(this@HistoryActivity, message, Toast.LENGTH_LONG).show()
+        }
+    }
+    
+    /**
+     * Adds the sessions from the chosen document; stats, calendar and list refresh through the repository
+     */
+    private fun importSessions(uri: Uri) {
+        lifecycleScope.launch {
+            val message = try {
+                val count = withContext(Dispatchers.IO) {
+                    val descriptor = contentResolver.openFileDescriptor(uri, "r")
+                        ?: throw IOException("Could not open $uri")
+                    descriptor.use {
+                        FileInputStream(it.fileDescriptor).channel.use { channel ->
+                            repository.importSessions(channel)
+                        }
+                    }
+                }
+                resources.getQuantityString(R.plurals.import_done, count, count)
+            } catch (e: IOException) {
+                getString(R.string.import_failed)
+            }
+            Toast.makeText(this@HistoryActivity, message, Toast.LENGTH_LONG).show()
+        }
+    }
+    
+    /**
+     * Looks up the minutes for the days the calendar shows; reads the day index, not the sessions
+     */
+    private fun highlightSessionDates(firstDay: Long, dayCount: Int) {
+        lifecycleScope.launch {
+            binding.calendarView.setDayMinutes(firstDay, repository.minutesBetween(firstDay, dayCount))
+        }
     }
 }
 
 /**
- * Adapter for displaying session history items
+ * Adapter for displaying session history items; pages are diffed off the main thread
  */
-class SessionAdapter : androidx.recyclerview.widget.ListAdapter<SessionData, SessionAdapter.SessionViewHolder>(
+class SessionAdapter : PagingDataAdapter<SessionData, SessionAdapter.SessionViewHolder>(
     object : androidx.recyclerview.widget.DiffUtil.ItemCallback<SessionData>() {
         override fun areItemsTheSame(oldItem: SessionData, newItem: SessionData): Boolean {
             return oldItem.id == newItem.id
@@ -142,9 +252,15 @@ class SessionAdapter : androidx.recyclerview.widget.ListAdapter<SessionData, Ses
         // In a real implementation, we would use ViewBinding here
         val dateText: android.widget.TextView = itemView.findViewById(R.id.tvSessionDate)
         val durationText: android.widget.TextView = itemView.findViewById(R.id.tvSessionDuration)
+        private val dateFormat = SimpleDateFormat("MMMM d", Locale.getDefault())
         
-        fun bind(session: SessionData) {
-            val dateFormat = SimpleDateFormat("MMMM d", Locale.getDefault())
+        fun bind(session: SessionData?) {
+            if (session == null) {
+                // Placeholder for a row that is still being decoded
+                dateText.text = ""
+                durationText.text = ""
+                return
+            }
             dateText.text = dateFormat.format(Date(session.startTime))
             durationText.text = "${session.durationMinutes} min"
         }
@@ -1,14 +1,29 @@
 package com.didi.breathedeep.ui
 
+import android.content.Context
 import android.content.Intent
 import android.os.Bundle
+import android.text.InputType
+import android.widget.EditText
+import android.widget.NumberPicker
+import android.widget.Toast
+import androidx.appcompat.app.AlertDialog
 import androidx.appcompat.app.AppCompatActivity
+import androidx.lifecycle.lifecycleScope
 import com.didi.breathedeep.R
 import com.didi.breathedeep.databinding.ActivityHomeBinding
+import com.didi.breathedeep.util.BreathingPattern
+import com.didi.breathedeep.util.StartupTrace
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 
 class HomeActivity : AppCompatActivity() {
 
     private lateinit var binding: ActivityHomeBinding
+    private var pattern: BreathingPattern = BreathingPattern.STEADY
+    private var patternLoad: Job? = null
     
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -17,11 +32,28 @@ class HomeActivity : AppCompatActivity() {
         
         setupUI()
         setupListeners()
+        
+        // The first frame shows the default pattern; the screen is fully usable once the
+        // saved one has been applied to it
+        StartupTrace.markAfterFirstDraw(this, StartupTrace.FIRST_FRAME) {
+            lifecycleScope.launch {
+                patternLoad?.join()
+                StartupTrace.mark(StartupTrace.INTERACTIVE)
+                reportFullyDrawn()
+            }
+        }
     }
     
     private fun setupUI() {
         // Setup bottom navigation
         binding.bottomNavigation.selectedItemId = R.id.navigation_home
+        
+        // The saved pattern is read off the main thread; the button shows the default until then
+        updatePatternButton()
+        patternLoad = lifecycleScope.launch {
+            pattern = withContext(Dispatchers.IO) { loadPattern() }
+            updatePatternButton()
+        }
     }
     
     private fun setupListeners() {
@@ -42,6 +74,14 @@ class HomeActivity : AppCompatActivity() {
             startSession(30)
         }
         
+        binding.btnCustomDuration.setOnClickListener {
+            showCustomDurationDialog()
+        }
+        
+        binding.btnBreathingPattern.setOnClickListener {
+            showPatternDialog()
+        }
+        
         // Setup bottom navigation
         binding.bottomNavigation.setOnItemSelectedListener { item ->
             when (item.itemId) {
@@ -62,9 +102,118 @@ class HomeActivity : AppCompatActivity() {
     }
     
     private fun startSession(durationMinutes: Int) {
-        val intent = Intent(this, SessionActivity::class.java).apply {
-            putExtra("DURATION_MINUTES", durationMinutes)
+        lifecycleScope.launch {
+            // A card tapped before the saved pattern has loaded still starts with it
+            patternLoad?.join()
+            val intent = Intent(this@HomeActivity, SessionActivity::class.java).apply {
+                putExtra("DURATION_MINUTES", durationMinutes)
+                putExtra("BREATHING_PATTERN", pattern.toIntArray())
+            }
+            startActivity(intent)
         }
-        startActivity(intent)
+    }
+    
+    private fun showCustomDurationDialog() {
+        val picker = NumberPicker(this).apply {
+            minValue = MIN_CUSTOM_MINUTES
+            maxValue = MAX_CUSTOM_MINUTES
+            value = DEFAULT_CUSTOM_MINUTES
+        }
+        AlertDialog.Builder(this)
+            .setTitle(R.string.custom_duration)
+            .setView(picker)
+            .setPositiveButton(android.R.string.ok) { _, _ -> startSession(picker.value) }
+            .setNegativeButton(android.R.string.cancel, null)
+            .show()
+    }
+    
+    private fun showPatternDialog() {
+        val presets = BreathingPattern.PRESETS
+        val names = presets.map { getString(patternName(it)) } + getString(R.string.pattern_custom)
+        val checked = presets.indexOf(pattern).let { if (it < 0) presets.size else it }
+        AlertDialog.Builder(this)
+            .setTitle(R.string.choose_pattern)
+            .setSingleChoiceItems(names.toTypedArray(), checked) { dialog, which ->
+                dialog.dismiss()
+                if (which < presets.size) {
+                    selectPattern(presets[which])
+                } else {
+                    showCustomPatternDialog()
+                }
+            }
+            .show()
+    }
+    
+    private fun showCustomPatternDialog() {
+        val input = EditText(this).apply {
+            hint = getString(R.string.custom_pattern_hint)
+            inputType = InputType.TYPE_CLASS_TEXT
+        }
+        AlertDialog.Builder(this)
+            .setTitle(R.string.pattern_custom)
+            .setView(input)
+            .setPositiveButton(android.R.string.ok) { _, _ ->
+                val custom = parseCustomPattern(input.text.toString())
+                if (custom != null) {
+                    selectPattern(custom)
+                } else {
+                    Toast.makeText(this, R.string.invalid_pattern, Toast.LENGTH_SHORT).show()
+                }
+            }
+            .setNegativeButton(android.R.string.cancel, null)
+            .show()
+    }
+    
+    /**
+     * Parses "inhale-hold-exhale-hold" in whole seconds, or returns null
+     */
+    private fun parseCustomPattern(text: String): BreathingPattern? {
+        val seconds = text.split('-').map { it.trim().toIntOrNull() ?: return null }
+        if (seconds.size != 4 || seconds.any { it !in 0..MAX_PHASE_SECONDS }) return null
+        if (seconds[0] == 0 || seconds[2] == 0) return null
+        return BreathingPattern.custom(seconds[0], seconds[1], seconds[2], seconds[3])
+    }
+    
+    private fun selectPattern(selected: BreathingPattern) {
+        // The user's choice wins over a saved pattern that is still loading
+        patternLoad?.cancel()
+        pattern = selected
+        getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+            .putString(PATTERN_KEY, selected.toIntArray().joinToString(","))
+            .apply()
+        updatePatternButton()
+    }
+    
+    private fun loadPattern(): BreathingPattern {
+        val stored = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getString(PATTERN_KEY, null)
+        val values = stored?.split(',')?.mapNotNull { it.toIntOrNull() }?.toIntArray()
+        return BreathingPattern.fromIntArray(values)
+    }
+    
+    private fun updatePatternButton() {
+        val name = if (pattern.id == BreathingPattern.CUSTOM_ID) {
+            listOf(pattern.inhaleMillis, pattern.holdInMillis, pattern.exhaleMillis, pattern.holdOutMillis)
+                .joinToString("-") { (it / 1000).toString() }
+        } else {
+            getString(patternName(pattern))
+        }
+        binding.btnBreathingPattern.text = getString(R.string.breathing_pattern, name)
+    }
+    
+    private fun patternName(preset: BreathingPattern): Int = when (preset.id) {
+        BreathingPattern.BOX_ID -> R.string.pattern_box
+        BreathingPattern.RELAXING_ID -> R.string.pattern_relaxing
+        BreathingPattern.COHERENT_ID -> R.string.pattern_coherent
+        BreathingPattern.CUSTOM_ID -> R.string.pattern_custom
+        else -> R.string.pattern_steady
+    }
+    
+    companion object {
+        private const val PREFS_NAME = "breathe_deep_prefs"
+        private const val PATTERN_KEY = "breathing_pattern"
+        private const val MIN_CUSTOM_MINUTES = 1
+        private const val MAX_CUSTOM_MINUTES = 120
+        private const val DEFAULT_CUSTOM_MINUTES = 20
+        private const val MAX_PHASE_SECONDS = 60
     }
 }
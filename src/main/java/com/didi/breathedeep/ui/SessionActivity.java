@@ -1,84 +1,110 @@
 package com.didi.breathedeep.ui
 
-import android.animation.Animator
-import android.animation.AnimatorSet
-import android.animation.ObjectAnimator
-import android.animation.ValueAnimator
+import android.content.ComponentName
+import android.content.Context
 import android.content.Intent
+import android.content.ServiceConnection
 import android.os.Bundle
-import android.os.CountDownTimer
-import android.view.View
-import android.view.animation.AccelerateDecelerateInterpolator
-import android.view.animation.LinearInterpolator
-import android.widget.ImageView
+import android.os.IBinder
+import android.util.Log
 import androidx.appcompat.app.AlertDialog
 import androidx.appcompat.app.AppCompatActivity
-import androidx.core.animation.doOnRepeat
 import androidx.core.view.ViewCompat
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.lifecycleScope
+import androidx.lifecycle.repeatOnLifecycle
 import com.didi.breathedeep.R
-import com.didi.breathedeep.data.SessionManager
+import com.didi.breathedeep.data.FrameSummary
+import com.didi.breathedeep.data.SessionStats
 import com.didi.breathedeep.databinding.ActivitySessionBinding
-import com.didi.breathedeep.util.AudioManager
-import com.didi.breathedeep.util.BubbleView
+import com.didi.breathedeep.service.SessionService
+import com.didi.breathedeep.service.SessionState
+import com.didi.breathedeep.util.BreathingPattern
+import com.didi.breathedeep.util.BubbleParticleView
+import com.didi.breathedeep.util.FrameMetricsRecorder
+import com.didi.breathedeep.util.FrameTimeHistogram
 import com.didi.breathedeep.util.LightRayView
+import com.didi.breathedeep.util.QualityGovernor
+import com.didi.breathedeep.util.QualityTier
 import com.didi.breathedeep.util.RippleView
+import com.didi.breathedeep.util.SessionClock
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.launch
 import java.util.concurrent.TimeUnit
-import kotlin.random.Random
 
+/**
+ * Renders the session run by [SessionService].
+ *
+ * The activity binds to the service, draws the countdown and animation layers while
+ * it is visible, and forwards pause, resume and cancel. Leaving or rotating the
+ * screen does not interrupt the session.
+ */
 class SessionActivity : AppCompatActivity() {
 
     private lateinit var binding: ActivitySessionBinding
-    private lateinit var sessionManager: SessionManager
-    private lateinit var audioManager: AudioManager
     
-    private var durationMinutes: Int = 5
+    private var service: SessionService? = null
+    private var serviceJob: Job? = null
     private var isPaused: Boolean = false
-    private var timeRemaining: Long = 0
     
-    private var countDownTimer: CountDownTimer? = null
-    private var breathingAnimator: ValueAnimator? = null
-    private var bubbleAnimators: MutableList<Animator> = mutableListOf()
-    private var lightRayAnimator: AnimatorSet? = null
-    private var rippleAnimator: ValueAnimator? = null
+    // Draws every animation layer from the service's session time
+    private lateinit var sessionClock: SessionClock
+    
+    private lateinit var frameRecorder: FrameMetricsRecorder
+    private lateinit var breathingHistogram: FrameTimeHistogram
+    private lateinit var qualityGovernor: QualityGovernor
     
     // Views for enhanced animations
-    private lateinit var bubbleViews: List<BubbleView>
+    private lateinit var bubbleView: BubbleParticleView
     private lateinit var lightRayView: LightRayView
     private lateinit var rippleView: RippleView
     
+    private val connection = object : ServiceConnection {
+        override fun onServiceConnected(name: ComponentName, binder: IBinder) {
+            attach((binder as SessionService.LocalBinder).service)
+        }
+        
+        override fun onServiceDisconnected(name: ComponentName) {
+            detach()
+        }
+    }
+    
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         binding = ActivitySessionBinding.inflate(layoutInflater)
         setContentView(binding.root)
         
-        sessionManager = SessionManager(this)
-        audioManager = AudioManager(this)
+        frameRecorder = FrameMetricsRecorder(window)
+        qualityGovernor = QualityGovernor(this) { tier -> applyQualityTier(tier) }
+        frameRecorder.frameObserver = qualityGovernor::onFrame
+        sessionClock = SessionClock({ service?.timer?.elapsedMillis() ?: 0L }) { elapsedMillis ->
+            onSessionFrame(elapsedMillis)
+        }
         
-        // Get session duration from intent
-        durationMinutes = intent.getIntExtra("DURATION_MINUTES", 5)
-        timeRemaining = TimeUnit.MINUTES.toMillis(durationMinutes.toLong())
+        // Only a fresh launch starts a session; recreation and the notification reattach to it
+        if (savedInstanceState == null && intent.hasExtra("DURATION_MINUTES")) {
+            val durationMinutes = intent.getIntExtra("DURATION_MINUTES", 5)
+            updateTimerDisplay(TimeUnit.MINUTES.toMillis(durationMinutes.toLong()))
+            val pattern = BreathingPattern.fromIntArray(intent.getIntArrayExtra("BREATHING_PATTERN"))
+            SessionService.start(this, durationMinutes, pattern)
+        }
         
-        setupUI()
         setupAnimationViews()
         setupListeners()
-        startSession()
-    }
-    
-    private fun setupUI() {
-        updateTimerDisplay(timeRemaining)
+        bindService(Intent(this, SessionService::class.java), connection, Context.BIND_AUTO_CREATE)
     }
     
     private fun setupAnimationViews() {
-        // Create and add bubble views
-        val bubbleContainer = binding.bubbleContainer
-        bubbleViews = List(15) { 
-            BubbleView(this).apply {
-                id = ViewCompat.generateViewId()
-                alpha = Random.nextFloat() * 0.5f + 0.2f // 0.2 to 0.7 alpha
-                val size = Random.nextInt(10, 40)
-                layoutParams = androidx.constraintlayout.widget.ConstraintLayout.LayoutParams(size, size)
-                bubbleContainer.addView(this)
-            }
+        // Create and add bubble particle view
+        bubbleView = BubbleParticleView(this).apply {
+            id = ViewCompat.generateViewId()
+            layoutParams = androidx.constraintlayout.widget.ConstraintLayout.LayoutParams(
+                androidx.constraintlayout.widget.ConstraintLayout.LayoutParams.MATCH_PARENT,
+                androidx.constraintlayout.widget.ConstraintLayout.LayoutParams.MATCH_PARENT
+            )
+            setBubbleCount(BubbleParticleView.DEFAULT_BUBBLES)
+            drawHistogram = frameRecorder.layer(LAYER_BUBBLES)
+            binding.bubbleContainer.addView(this)
         }
         
         // Create and add light ray view
@@ -88,6 +114,7 @@ class SessionActivity : AppCompatActivity() {
                 androidx.constraintlayout.widget.ConstraintLayout.LayoutParams.MATCH_PARENT,
                 androidx.constraintlayout.widget.ConstraintLayout.LayoutParams.MATCH_PARENT
             )
+            drawHistogram = frameRecorder.layer(LAYER_LIGHT_RAYS)
             binding.lightRayContainer.addView(this)
         }
         
@@ -98,16 +125,20 @@ class SessionActivity : AppCompatActivity() {
                 androidx.constraintlayout.widget.ConstraintLayout.LayoutParams.MATCH_PARENT,
                 androidx.constraintlayout.widget.ConstraintLayout.LayoutParams.MATCH_PARENT
             )
+            drawHistogram = frameRecorder.layer(LAYER_RIPPLES)
             binding.rippleContainer.addView(this)
         }
+        
+        // The breathing circle is a property animation, so its cost is the update itself
+        breathingHistogram = frameRecorder.layer(LAYER_BREATHING)
     }
     
     private fun setupListeners() {
         binding.btnPauseResume.setOnClickListener {
             if (isPaused) {
-                resumeSession()
+                service?.resume()
             } else {
-                pauseSession()
+                service?.pause()
             }
         }
         
@@ -116,243 +147,124 @@ class SessionActivity : AppCompatActivity() {
         }
     }
     
-    private fun startSession() {
-        // Start audio playback
-        val audioResId = when (durationMinutes) {
-            5 -> R.raw.meditation_5min
-            10 -> R.raw.meditation_10min
-            15 -> R.raw.meditation_15min
-            30 -> R.raw.meditation_30min
-            else -> R.raw.meditation_5min
-        }
-        audioManager.playAudio(audioResId)
-        
-        // Start all animations
-        startBreathingAnimation()
-        startBubbleAnimations()
-        startLightRayAnimation()
-        startRippleAnimation()
+    private fun attach(boundService: SessionService) {
+        service = boundService
+        boundService.frameSummarySource = { finishFrameMeasurements() }
+        boundService.activityStarted = lifecycle.currentState.isAtLeast(Lifecycle.State.STARTED)
         
-        // Start countdown timer
-        startCountdownTimer(timeRemaining)
-        
-        // Record session start
-        sessionManager.startSession(durationMinutes)
+        serviceJob = lifecycleScope.launch {
+            repeatOnLifecycle(Lifecycle.State.STARTED) {
+                launch {
+                    boundService.remainingMillis.collect { updateTimerDisplay(it) }
+                }
+                launch {
+                    boundService.state.collect { onStateChanged(it) }
+                }
+                launch {
+                    boundService.result.collect { stats -> stats?.let { showCompletion(boundService, it) } }
+                }
+            }
+        }
     }
     
-    private fun pauseSession() {
-        isPaused = true
-        binding.btnPauseResume.text = getString(R.string.resume)
-        binding.btnPauseResume.icon = getDrawable(R.drawable.ic_play)
-        
-        // Pause timer
-        countDownTimer?.cancel()
-        
-        // Pause animations
-        breathingAnimator?.pause()
-        bubbleAnimators.forEach { it.pause() }
-        lightRayAnimator?.pause()
-        rippleAnimator?.pause()
-        
-        // Pause audio
-        audioManager.pauseAudio()
+    private fun detach() {
+        serviceJob?.cancel()
+        serviceJob = null
+        service?.frameSummarySource = null
+        service?.activityStarted = false
+        service = null
+        stopRendering()
     }
     
-    private fun resumeSession() {
-        isPaused = false
-        binding.btnPauseResume.text = getString(R.string.pause)
-        binding.btnPauseResume.icon = getDrawable(R.drawable.ic_pause)
-        
-        // Resume timer
-        startCountdownTimer(timeRemaining)
-        
-        // Resume animations
-        breathingAnimator?.resume()
-        bubbleAnimators.forEach { it.resume() }
-        lightRayAnimator?.resume()
-        rippleAnimator?.resume()
+    private fun onStateChanged(state: SessionState) {
+        isPaused = state == SessionState.PAUSED
+        if (isPaused) {
+            binding.btnPauseResume.text = getString(R.string.resume)
+            binding.btnPauseResume.icon = getDrawable(R.drawable.ic_play)
+        } else {
+            binding.btnPauseResume.text = getString(R.string.pause)
+            binding.btnPauseResume.icon = getDrawable(R.drawable.ic_pause)
+        }
         
-        // Resume audio
-        audioManager.resumeAudio()
+        when (state) {
+            SessionState.RUNNING -> startRendering()
+            SessionState.PAUSED, SessionState.COMPLETED -> stopRendering()
+            SessionState.CANCELLED -> finish()
+            SessionState.IDLE -> Unit // waiting for the start request to arrive
+        }
     }
     
-    private fun startCountdownTimer(millisUntilFinished: Long) {
-        countDownTimer?.cancel()
-        
-        countDownTimer = object : CountDownTimer(millisUntilFinished, 1000) {
-            override fun onTick(millisUntilFinished: Long) {
-                timeRemaining = millisUntilFinished
-                updateTimerDisplay(millisUntilFinished)
-            }
-            
-            override fun onFinish() {
-                completeSession()
-            }
-        }.start()
+    private fun startRendering() {
+        // Draw the countdown and all animations, measuring and adapting frame cost
+        sessionClock.start()
+        frameRecorder.start()
+        qualityGovernor.start()
     }
     
-    private fun updateTimerDisplay(millisUntilFinished: Long) {
-        val minutes = TimeUnit.MILLISECONDS.toMinutes(millisUntilFinished)
-        val seconds = TimeUnit.MILLISECONDS.toSeconds(millisUntilFinished) - 
-                      TimeUnit.MINUTES.toSeconds(minutes)
-        
-        binding.tvTimeRemaining.text = String.format("%02d:%02d", minutes, seconds)
+    private fun stopRendering() {
+        sessionClock.pause()
+        qualityGovernor.stop()
+        frameRecorder.stop()
     }
     
-    private fun startBreathingAnimation() {
-        // Create breathing circle animation
-        breathingAnimator = ValueAnimator.ofFloat(0.8f, 1.2f).apply {
-            duration = 10000 // 10 seconds per cycle
-            repeatCount = ValueAnimator.INFINITE
-            repeatMode = ValueAnimator.REVERSE
-            interpolator = AccelerateDecelerateInterpolator()
-            
-            addUpdateListener { animator ->
-                val value = animator.animatedValue as Float
-                binding.viewBreathingCircle.scaleX = value
-                binding.viewBreathingCircle.scaleY = value
-            }
-        }
-        
-        breathingAnimator?.start()
+    /**
+     * Scales the background layers to the tier chosen by the quality governor
+     */
+    private fun applyQualityTier(tier: QualityTier) {
+        bubbleView.setBubbleCount(tier.bubbleCount)
+        rippleView.setAngleStep(tier.rippleAngleStep)
+        lightRayView.setRayCount(tier.lightRayCount)
     }
     
-    private fun startBubbleAnimations() {
-        bubbleAnimators.clear()
+    /**
+     * Renders one frame of the session; every layer is a function of session time alone
+     */
+    private fun onSessionFrame(elapsedMillis: Long) {
+        // Breathing circle, following the session's breathing pattern
+        val updateStart = System.nanoTime()
+        val breath = service?.breathing?.levelAt(elapsedMillis) ?: 0f
+        val scale = BREATH_MIN_SCALE + (BREATH_MAX_SCALE - BREATH_MIN_SCALE) * breath
+        binding.viewBreathingCircle.scaleX = scale
+        binding.viewBreathingCircle.scaleY = scale
+        breathingHistogram.recordSince(updateStart)
         
-        // Create and start bubble animations
-        bubbleViews.forEach { bubbleView ->
-            // Position bubbles at random horizontal positions at the bottom
-            val startX = Random.nextFloat() * binding.bubbleContainer.width
-            val startY = binding.bubbleContainer.height + bubbleView.height
-            
-            bubbleView.x = startX
-            bubbleView.y = startY
-            
-            // Create vertical animation (bubbles rising)
-            val yAnimator = ObjectAnimator.ofFloat(
-                bubbleView, 
-                "translationY", 
-                startY, 
-                -bubbleView.height.toFloat()
-            ).apply {
-                duration = Random.nextLong(15000, 30000) // 15-30 seconds to rise
-                interpolator = LinearInterpolator()
-                repeatCount = ValueAnimator.INFINITE
-                
-                // Reset horizontal position on repeat
-                doOnRepeat {
-                    bubbleView.x = Random.nextFloat() * binding.bubbleContainer.width
-                }
-            }
-            
-            // Create slight horizontal wobble
-            val xAnimator = ObjectAnimator.ofFloat(
-                bubbleView,
-                "translationX",
-                startX - 20f,
-                startX + 20f
-            ).apply {
-                duration = Random.nextLong(2000, 5000) // 2-5 seconds per wobble
-                repeatCount = ValueAnimator.INFINITE
-                repeatMode = ValueAnimator.REVERSE
-                interpolator = AccelerateDecelerateInterpolator()
-            }
-            
-            // Create size pulsing animation
-            val scaleAnimator = ObjectAnimator.ofFloat(
-                bubbleView,
-                "scaleX",
-                0.8f,
-                1.2f
-            ).apply {
-                duration = Random.nextLong(2000, 4000) // 2-4 seconds per pulse
-                repeatCount = ValueAnimator.INFINITE
-                repeatMode = ValueAnimator.REVERSE
-                interpolator = AccelerateDecelerateInterpolator()
-            }
-            
-            // Link X and Y scale
-            val scaleYAnimator = ObjectAnimator.ofFloat(
-                bubbleView,
-                "scaleY",
-                0.8f,
-                1.2f
-            ).apply {
-                duration = scaleAnimator.duration
-                repeatCount = ValueAnimator.INFINITE
-                repeatMode = ValueAnimator.REVERSE
-                interpolator = AccelerateDecelerateInterpolator()
-            }
-            
-            // Combine all animations
-            AnimatorSet().apply {
-                playTogether(yAnimator, xAnimator, scaleAnimator, scaleYAnimator)
-                start()
-                bubbleAnimators.add(this)
-            }
-        }
-    }
-    
-    private fun startLightRayAnimation() {
-        // Create light ray animation
-        val rotateAnimator = ObjectAnimator.ofFloat(
-            lightRayView,
-            "rotation",
-            0f,
-            360f
-        ).apply {
-            duration = 120000 // 2 minutes per full rotation
-            repeatCount = ValueAnimator.INFINITE
-            interpolator = LinearInterpolator()
-        }
+        bubbleView.setSessionTime(elapsedMillis)
         
-        val alphaAnimator = ObjectAnimator.ofFloat(
-            lightRayView,
-            "alpha",
-            0.2f,
-            0.5f
-        ).apply {
-            duration = 10000 // 10 seconds per alpha cycle
-            repeatCount = ValueAnimator.INFINITE
-            repeatMode = ValueAnimator.REVERSE
-            interpolator = AccelerateDecelerateInterpolator()
+        // Layers the quality governor has frozen keep their last frame on screen
+        val tier = qualityGovernor.tier
+        if (tier.animateLightRays) {
+            lightRayView.rotation = SessionClock.cycle(elapsedMillis, LIGHT_RAY_ROTATION_MS) * 360f
+            lightRayView.alpha = LIGHT_RAY_MIN_ALPHA + (LIGHT_RAY_MAX_ALPHA - LIGHT_RAY_MIN_ALPHA) *
+                SessionClock.easedPingPong(elapsedMillis, LIGHT_RAY_FADE_MS)
         }
-        
-        lightRayAnimator = AnimatorSet().apply {
-            playTogether(rotateAnimator, alphaAnimator)
-            start()
+        if (tier.animateRipples) {
+            rippleView.setPhase(SessionClock.cycle(elapsedMillis, RIPPLE_CYCLE_MS))
         }
     }
     
-    private fun startRippleAnimation() {
-        // Create water ripple animation
-        rippleAnimator = ValueAnimator.ofFloat(0f, 1f).apply {
-            duration = 8000 // 8 seconds per ripple cycle
-            repeatCount = ValueAnimator.INFINITE
-            interpolator = LinearInterpolator()
-            
-            addUpdateListener { animator ->
-                val value = animator.animatedValue as Float
-                rippleView.setPhase(value)
-                rippleView.invalidate()
-            }
-        }
+    private fun updateTimerDisplay(millisUntilFinished: Long) {
+        // Round up so the display reaches 00:00 exactly when the session ends
+        val totalSeconds = (millisUntilFinished + 999) / 1000
+        val minutes = TimeUnit.SECONDS.toMinutes(totalSeconds)
+        val seconds = totalSeconds - TimeUnit.MINUTES.toSeconds(minutes)
         
-        rippleAnimator?.start()
+        binding.tvTimeRemaining.text = String.format("%02d:%02d", minutes, seconds)
     }
     
-    private fun completeSession() {
-        // Record session completion
-        sessionManager.completeSession()
-        
-        // Stop audio
-        audioManager.stopAudio()
-        
+    /**
+     * Called by the service when the session ends while this activity is attached
+     */
+    private fun finishFrameMeasurements(): FrameSummary {
+        stopRendering()
+        Log.i(TAG, "Session frame timing\n" + frameRecorder.report())
+        return frameRecorder.summary()
+    }
+    
+    private fun showCompletion(boundService: SessionService, stats: SessionStats) {
         // Navigate to completion screen
         val intent = Intent(this, SessionCompleteActivity::class.java).apply {
-            putExtra("DURATION_MINUTES", durationMinutes)
-            putExtra("TOTAL_MINUTES", sessionManager.getTotalMinutes())
+            putExtra("DURATION_MINUTES", boundService.durationMinutes)
+            putExtra("TOTAL_MINUTES", stats.totalMinutes)
         }
         startActivity(intent)
         finish()
@@ -363,39 +275,46 @@ class SessionActivity : AppCompatActivity() {
             .setTitle(R.string.end_session)
             .setMessage(R.string.confirm_end_session)
             .setPositiveButton(R.string.yes) { _, _ ->
-                // Cancel timer
-                countDownTimer?.cancel()
-                
-                // Stop animations
-                breathingAnimator?.cancel()
-                bubbleAnimators.forEach { it.cancel() }
-                lightRayAnimator?.cancel()
-                rippleAnimator?.cancel()
-                
-                // Stop audio
-                audioManager.stopAudio()
-                
-                // Return to home screen
+                // Stop the session and return to home screen
+                service?.cancel()
                 finish()
             }
             .setNegativeButton(R.string.no, null)
             .show()
     }
     
-    override fun onPause() {
-        super.onPause()
-        if (!isPaused) {
-            pauseSession()
-        }
+    override fun onStart() {
+        super.onStart()
+        service?.activityStarted = true
+    }
+    
+    override fun onStop() {
+        super.onStop()
+        // The session keeps running in the service; only rendering stops
+        service?.activityStarted = false
+        stopRendering()
     }
     
     override fun onDestroy() {
         super.onDestroy()
-        countDownTimer?.cancel()
-        breathingAnimator?.cancel()
-        bubbleAnimators.forEach { it.cancel() }
-        lightRayAnimator?.cancel()
-        rippleAnimator?.cancel()
-        audioManager.releaseAudio()
+        unbindService(connection)
+        detach()
+    }
+    
+    companion object {
+        private const val TAG = "SessionActivity"
+        private const val LAYER_BREATHING = "breathing"
+        private const val LAYER_BUBBLES = "bubbles"
+        private const val LAYER_LIGHT_RAYS = "lightRays"
+        private const val LAYER_RIPPLES = "ripples"
+        
+        // Layer timing
+        private const val BREATH_MIN_SCALE = 0.8f
+        private const val BREATH_MAX_SCALE = 1.2f
+        private const val LIGHT_RAY_ROTATION_MS = 120_000L
+        private const val LIGHT_RAY_FADE_MS = 10_000L
+        private const val LIGHT_RAY_MIN_ALPHA = 0.2f
+        private const val LIGHT_RAY_MAX_ALPHA = 0.5f
+        private const val RIPPLE_CYCLE_MS = 8_000L
     }
 }
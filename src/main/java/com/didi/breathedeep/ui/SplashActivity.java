@@ -1,42 +1,78 @@
 package com.didi.breathedeep.ui
 
+import android.content.Context
 import android.content.Intent
 import android.os.Bundle
-import android.os.Handler
-import android.os.Looper
+import android.util.Log
 import androidx.appcompat.app.AppCompatActivity
-import com.didi.breathedeep.R
-import com.didi.breathedeep.databinding.ActivitySplashBinding
+import androidx.core.splashscreen.SplashScreen.Companion.installSplashScreen
+import androidx.lifecycle.lifecycleScope
+import com.didi.breathedeep.data.SessionRepository
+import com.didi.breathedeep.util.StartupTrace
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.launch
+import java.io.IOException
 
+/**
+ * Entry point. The platform splash screen stays up while preferences and session
+ * totals load in parallel off the main thread, and the app routes as soon as both
+ * are ready.
+ */
 class SplashActivity : AppCompatActivity() {
 
-    private lateinit var binding: ActivitySplashBinding
+    private var ready = false
     
     override fun onCreate(savedInstanceState: Bundle?) {
+        val splashScreen = installSplashScreen()
         super.onCreate(savedInstanceState)
-        binding = ActivitySplashBinding.inflate(layoutInflater)
-        setContentView(binding.root)
+        StartupTrace.mark("splash created")
+        splashScreen.setKeepOnScreenCondition { !ready }
         
-        // Delayed navigation to onboarding or home screen
-        Handler(Looper.getMainLooper()).postDelayed({
-            // Check if first launch
-            val prefs = getSharedPreferences("app_prefs", MODE_PRIVATE)
-            val isFirstLaunch = prefs.getBoolean("is_first_launch", true)
+        lifecycleScope.launch {
+            val firstLaunch = async(Dispatchers.IO) { readFirstLaunch() }
+            val stats = async {
+                try {
+                    SessionRepository.getInstance(this@SplashActivity).open()
+                } catch (e: IOException) {
+                    // Route anyway; screens show empty totals rather than the app failing to start
+                    Log.w(TAG, "Could not open session store", e)
+                    null
+                }
+            }
+            
+            val isFirstLaunch = firstLaunch.await()
+            StartupTrace.mark("prefs loaded")
+            stats.await()
+            StartupTrace.mark("session totals loaded")
             
             if (isFirstLaunch) {
                 // First launch, show onboarding
-                startActivity(Intent(this, OnboardingActivity::class.java))
-                prefs.edit().putBoolean("is_first_launch", false).apply()
+                startActivity(Intent(this@SplashActivity, OnboardingActivity::class.java))
             } else {
                 // Not first launch, go directly to home
-                startActivity(Intent(this, HomeActivity::class.java))
+                startActivity(Intent(this@SplashActivity, HomeActivity::class.java))
             }
-            
+            ready = true
             finish()
-        }, SPLASH_DELAY)
+        }
+    }
+    
+    /**
+     * Checks if this is the first launch, and records that it no longer is
+     */
+    private fun readFirstLaunch(): Boolean {
+        val prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+        val isFirstLaunch = prefs.getBoolean(FIRST_LAUNCH_KEY, true)
+        if (isFirstLaunch) {
+            prefs.edit().putBoolean(FIRST_LAUNCH_KEY, false).apply()
+        }
+        return isFirstLaunch
     }
     
     companion object {
-        private const val SPLASH_DELAY = 1500L // 1.5 seconds
+        private const val TAG = "SplashActivity"
+        private const val PREFS_NAME = "app_prefs"
+        private const val FIRST_LAUNCH_KEY = "is_first_launch"
     }
 }
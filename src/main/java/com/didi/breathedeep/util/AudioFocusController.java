@@ -0,0 +1,112 @@
+package com.didi.breathedeep.util
+
+import android.content.Context
+import android.media.AudioAttributes
+import android.media.AudioFocusRequest
+import android.os.Build
+import androidx.annotation.RequiresApi
+
+/**
+ * What session audio may do while another app competes for audio focus
+ */
+enum class FocusState {
+    /** Play at full level */
+    GAINED,
+    
+    /** Keep playing quietly under a short sound from another app */
+    DUCKED,
+    
+    /** Fall silent until focus comes back */
+    PAUSED,
+    
+    /** Focus was taken for good; silent until playback is requested again */
+    LOST
+}
+
+/**
+ * Requests and tracks audio focus for session playback.
+ *
+ * Focus changes made by the system are reported through [onChange] on the main
+ * thread. The controller only translates them into a [FocusState]; fading is left
+ * to the player.
+ */
+class AudioFocusController(
+    context: Context,
+    private val onChange: (FocusState) -> Unit
+) {
+    
+    private val systemAudio = context.getSystemService(Context.AUDIO_SERVICE) as android.media.AudioManager
+    private var focusRequest: Any? = null
+    
+    var state = FocusState.LOST
+        private set
+    
+    private val listener = android.media.AudioManager.OnAudioFocusChangeListener { change ->
+        val newState = when (change) {
+            android.media.AudioManager.AUDIOFOCUS_GAIN -> FocusState.GAINED
+            android.media.AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK -> FocusState.DUCKED
+            android.media.AudioManager.AUDIOFOCUS_LOSS_TRANSIENT -> FocusState.PAUSED
+            android.media.AudioManager.AUDIOFOCUS_LOSS -> FocusState.LOST
+            else -> return@OnAudioFocusChangeListener
+        }
+        update(newState)
+        if (newState == FocusState.LOST) abandon()
+    }
+    
+    /**
+     * Asks for focus and returns the resulting state. It is not reported through
+     * [onChange]: the caller is starting or resuming playback and sets its own level.
+     */
+    fun request(): FocusState {
+        if (state == FocusState.GAINED || state == FocusState.DUCKED) return state
+        val granted = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            requestFocus()
+        } else {
+            @Suppress("DEPRECATION")
+            systemAudio.requestAudioFocus(
+                listener,
+                android.media.AudioManager.STREAM_MUSIC,
+                android.media.AudioManager.AUDIOFOCUS_GAIN
+            )
+        }
+        state = if (granted == android.media.AudioManager.AUDIOFOCUS_REQUEST_GRANTED) FocusState.GAINED else FocusState.LOST
+        return state
+    }
+    
+    /**
+     * Gives focus back to the system
+     */
+    fun abandon() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            (focusRequest as? AudioFocusRequest)?.let { systemAudio.abandonAudioFocusRequest(it) }
+        } else {
+            @Suppress("DEPRECATION")
+            systemAudio.abandonAudioFocus(listener)
+        }
+        state = FocusState.LOST
+    }
+    
+    @RequiresApi(Build.VERSION_CODES.O)
+    private fun requestFocus(): Int {
+        val request = (focusRequest as? AudioFocusRequest)
+            ?: AudioFocusRequest.Builder(android.media.AudioManager.AUDIOFOCUS_GAIN)
+                .setAudioAttributes(
+                    AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                        .build()
+                )
+                // Ducking is done by fading the stream, not by the system
+                .setWillPauseWhenDucked(true)
+                .setOnAudioFocusChangeListener(listener)
+                .build()
+                .also { focusRequest = it }
+        return systemAudio.requestAudioFocus(request)
+    }
+    
+    private fun update(newState: FocusState) {
+        if (newState == state) return
+        state = newState
+        onChange(newState)
+    }
+}
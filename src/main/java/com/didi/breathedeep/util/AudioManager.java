@@ -2,41 +2,75 @@ package com.didi.breathedeep.util
 
 import android.content.Context
 import android.media.AudioAttributes
-import android.media.MediaPlayer
-import java.io.IOException
+import android.media.AudioFormat
+import android.media.AudioTrack
+import android.os.Process
+import android.util.Log
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
 
 /**
- * Manages audio playback for meditation sessions
+ * Manages audio playback for meditation sessions.
+ *
+ * A short loopable track is decoded once with MediaCodec on a background thread and
+ * streamed by a playback thread into a single AudioTrack, wrapping around without a
+ * gap for any session length. Short cue sounds are mixed into the same stream, so no
+ * second player is needed.
+ *
+ * Every level change is a per-frame gain ramp on the playback thread: playback fades in
+ * and out on start, pause, resume and stop, a new track crossfades with the old one,
+ * and audio focus changes duck or pause the stream the same way. A paused stream
+ * stops the playback thread's work entirely.
  */
-class AudioManager(private val context: Context) {
+class AudioManager(context: Context) {
     
-    private var mediaPlayer: MediaPlayer? = null
+    private val context = context.applicationContext
+    private val decodeExecutor = Executors.newSingleThreadExecutor { Thread(it, "audio-decode") }
+    
+    // Decoded tracks by resource id, touched on the main thread only
+    private val tracks = HashMap<Int, PcmTrack>()
+    
+    // Cues converted to the loop's format, touched on the decode thread only
+    private val convertedCues = HashMap<Int, ShortArray>()
+    
+    private var player: LoopPlayer? = null
+    private var userPaused = false
+    private val focus = AudioFocusController(context) { applyLevel(FADE_MS) }
+    
+    /**
+     * Starts decoding a track ahead of time so [playAudio] can begin straight away
+     */
+    fun preload(resourceId: Int) {
+        track(resourceId)
+    }
     
     /**
-     * Plays audio from the specified resource ID
+     * Loops audio from the specified resource ID until stopped
      */
     fun playAudio(resourceId: Int) {
-        // Release any existing MediaPlayer
-        releaseAudio()
-        
-        // Create and prepare new MediaPlayer
-        mediaPlayer = MediaPlayer().apply {
-            setAudioAttributes(
-                AudioAttributes.Builder()
-                    .setUsage(AudioAttributes.USAGE_MEDIA)
-                    .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
-                    .build()
-            )
-            
-            try {
-                context.resources.openRawResourceFd(resourceId)?.use { fd ->
-                    setDataSource(fd.fileDescriptor, fd.startOffset, fd.length)
-                    prepare()
-                    start()
-                }
-            } catch (e: IOException) {
-                e.printStackTrace()
+        // The old loop fades out underneath the new one
+        val previous = player
+        previous?.finishAfterFade(CROSSFADE_MS)
+        player = LoopPlayer(track(resourceId)).apply { start() }
+        userPaused = false
+        focus.request()
+        applyLevel(if (previous != null) CROSSFADE_MS else FADE_MS)
+    }
+    
+    /**
+     * Mixes a short sound from the specified resource ID over the playing loop
+     */
+    fun playCue(resourceId: Int) {
+        val target = player ?: return
+        val cue = track(resourceId)
+        decodeExecutor.execute {
+            // Earlier tasks on this executor decode both tracks, so neither wait blocks
+            cue.awaitComplete()
+            if (!target.loop.awaitFormat(FORMAT_TIMEOUT_MS)) return@execute
+            val samples = convertedCues.getOrPut(resourceId) {
+                convert(cue, target.loop.sampleRate, target.loop.channelCount)
             }
+            target.addCue(samples)
         }
     }
     
@@ -44,47 +78,327 @@ class AudioManager(private val context: Context) {
      * Pauses current audio playback
      */
     fun pauseAudio() {
-        mediaPlayer?.let {
-            if (it.isPlaying) {
-                it.pause()
-            }
-        }
+        userPaused = true
+        applyLevel(FADE_MS)
     }
     
     /**
      * Resumes paused audio playback
      */
     fun resumeAudio() {
-        mediaPlayer?.let {
-            if (!it.isPlaying) {
-                it.start()
-            }
-        }
+        userPaused = false
+        // Focus may have been lost for good while paused
+        focus.request()
+        applyLevel(FADE_MS)
     }
     
     /**
-     * Stops audio playback
+     * Fades out and stops audio playback
      */
     fun stopAudio() {
-        mediaPlayer?.let {
-            if (it.isPlaying) {
-                it.stop()
-            }
-        }
+        player?.finishAfterFade(STOP_FADE_MS)
+        player = null
+        focus.abandon()
     }
     
     /**
-     * Releases MediaPlayer resources
+     * Stops playback and frees decoded audio; the manager cannot be used afterwards
      */
     fun releaseAudio() {
-        mediaPlayer?.release()
-        mediaPlayer = null
+        // Players already fading out finish on their own
+        player?.finish()
+        player = null
+        focus.abandon()
+        tracks.clear()
+        decodeExecutor.shutdown()
     }
     
     /**
      * Checks if audio is currently playing
      */
     fun isPlaying(): Boolean {
-        return mediaPlayer?.isPlaying ?: false
+        return player?.isPlaying ?: false
+    }
+    
+    /**
+     * Moves the current player to the level the user and audio focus allow
+     */
+    private fun applyLevel(fadeMillis: Long) {
+        val current = player ?: return
+        when {
+            userPaused || focus.state == FocusState.PAUSED || focus.state == FocusState.LOST ->
+                current.pauseAfterFade(fadeMillis)
+            focus.state == FocusState.DUCKED -> current.resumeWithFade(DUCKED_LEVEL, fadeMillis)
+            else -> current.resumeWithFade(FULL_LEVEL, fadeMillis)
+        }
+    }
+    
+    private fun track(resourceId: Int): PcmTrack {
+        return tracks.getOrPut(resourceId) { PcmTrack.decode(context, resourceId, decodeExecutor) }
+    }
+    
+    /**
+     * Streams one looping track, plus any cues, to an AudioTrack through a gain ramp.
+     * The stream starts silent and paused until the first [resumeWithFade].
+     */
+    private class LoopPlayer(val loop: PcmTrack) : Thread("audio-playback") {
+        
+        private val lock = Object()
+        private val pendingCues = ConcurrentLinkedQueue<ShortArray>()
+        
+        // Playback thread only
+        private val cueSamples = ArrayList<ShortArray>()
+        private val cuePositions = ArrayList<Int>()
+        private var loopPosition = 0
+        private var gain = 0f
+        private var gainStep = 0f
+        private var rampTarget = 0f
+        private var appliedFade = 0
+        
+        // Fade requests, written under lock by the owner and picked up once per chunk
+        private var fadeTarget = 0f
+        private var fadeMillis = 0L
+        private var fadeSerial = 0
+        
+        @Volatile
+        private var running = true
+        
+        @Volatile
+        private var pauseWhenSilent = true
+        
+        @Volatile
+        private var finishWhenSilent = false
+        
+        @Volatile
+        var isPlaying = false
+            private set
+        
+        fun addCue(samples: ShortArray) {
+            pendingCues.add(samples)
+        }
+        
+        /**
+         * Ramps to [level] and keeps playing
+         */
+        fun resumeWithFade(level: Float, millis: Long) {
+            synchronized(lock) {
+                pauseWhenSilent = false
+                fadeTo(level, millis)
+            }
+        }
+        
+        /**
+         * Ramps to silence, then pauses the track
+         */
+        fun pauseAfterFade(millis: Long) {
+            synchronized(lock) {
+                pauseWhenSilent = true
+                fadeTo(0f, millis)
+            }
+        }
+        
+        /**
+         * Ramps to silence, then ends the thread and releases the track
+         */
+        fun finishAfterFade(millis: Long) {
+            synchronized(lock) {
+                finishWhenSilent = true
+                // A paused stream is already silent
+                pauseWhenSilent = false
+                fadeTo(0f, millis)
+            }
+        }
+        
+        /**
+         * Ends the thread at once
+         */
+        fun finish() {
+            synchronized(lock) {
+                running = false
+                lock.notifyAll()
+            }
+        }
+        
+        private fun fadeTo(level: Float, millis: Long) {
+            fadeTarget = level
+            fadeMillis = millis
+            fadeSerial++
+            lock.notifyAll()
+        }
+        
+        override fun run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO)
+            if (!loop.awaitFormat(FORMAT_TIMEOUT_MS)) {
+                Log.w(TAG, "Loop track has no usable format; playing nothing")
+                return
+            }
+            val channels = loop.channelCount
+            val audioTrack = createAudioTrack(loop.sampleRate, channels)
+            val chunk = ShortArray(CHUNK_FRAMES * channels)
+            
+            try {
+                while (running) {
+                    val silent = gain == 0f && rampTarget == 0f
+                    if (silent && finishWhenSilent) break
+                    if (silent && pauseWhenSilent) {
+                        if (isPlaying) audioTrack.pause()
+                        isPlaying = false
+                        // No decoding or mixing happens while paused
+                        synchronized(lock) {
+                            while (pauseWhenSilent && !finishWhenSilent && running) lock.wait()
+                        }
+                        continue
+                    }
+                    if (!isPlaying) {
+                        audioTrack.play()
+                        isPlaying = true
+                    }
+                    takeFadeRequest(loop.sampleRate)
+                    fillFromLoop(chunk)
+                    mixCues(chunk)
+                    applyGain(chunk, channels)
+                    // Blocks until the track has room, which paces this loop
+                    audioTrack.write(chunk, 0, chunk.size)
+                }
+            } catch (e: InterruptedException) {
+                // Finishing
+            } finally {
+                isPlaying = false
+                audioTrack.pause()
+                audioTrack.flush()
+                audioTrack.release()
+            }
+        }
+        
+        private fun takeFadeRequest(sampleRate: Int) {
+            synchronized(lock) {
+                if (fadeSerial == appliedFade) return
+                appliedFade = fadeSerial
+                rampTarget = fadeTarget
+                val frames = maxOf(1L, fadeMillis * sampleRate / 1000L)
+                gainStep = (rampTarget - gain) / frames
+            }
+        }
+        
+        /**
+         * Scales every frame by the current gain, stepping the ramp once per frame
+         */
+        private fun applyGain(chunk: ShortArray, channels: Int) {
+            if (gain == rampTarget && gain == FULL_LEVEL) return
+            var i = 0
+            while (i < chunk.size) {
+                if (gain != rampTarget) {
+                    gain += gainStep
+                    if ((gainStep > 0f && gain >= rampTarget) || (gainStep < 0f && gain <= rampTarget)) {
+                        gain = rampTarget
+                    }
+                }
+                for (c in 0 until channels) {
+                    chunk[i + c] = (chunk[i + c] * gain).toInt().toShort()
+                }
+                i += channels
+            }
+        }
+        
+        private fun fillFromLoop(chunk: ShortArray) {
+            var filled = 0
+            while (filled < chunk.size) {
+                // Length first: any array published after it holds at least that many samples
+                val length = loop.length
+                val samples = loop.samples
+                if (loopPosition >= length) {
+                    if (loop.isComplete && length > 0) {
+                        // Wrap straight to the start: the loop is gapless
+                        loopPosition = 0
+                        continue
+                    }
+                    // Still decoding the first pass; pad with silence rather than block
+                    chunk.fill(0, filled, chunk.size)
+                    return
+                }
+                val count = minOf(chunk.size - filled, length - loopPosition)
+                System.arraycopy(samples, loopPosition, chunk, filled, count)
+                loopPosition += count
+                filled += count
+            }
+        }
+        
+        private fun mixCues(chunk: ShortArray) {
+            while (true) {
+                val cue = pendingCues.poll() ?: break
+                cueSamples.add(cue)
+                cuePositions.add(0)
+            }
+            for (c in cueSamples.indices.reversed()) {
+                val cue = cueSamples[c]
+                var position = cuePositions[c]
+                val count = minOf(chunk.size, cue.size - position)
+                for (i in 0 until count) {
+                    chunk[i] = (chunk[i] + cue[position + i]).coerceIn(Short.MIN_VALUE.toInt(), Short.MAX_VALUE.toInt()).toShort()
+                }
+                position += count
+                if (position >= cue.size) {
+                    cueSamples.removeAt(c)
+                    cuePositions.removeAt(c)
+                } else {
+                    cuePositions[c] = position
+                }
+            }
+        }
+    }
+    
+    companion object {
+        private const val TAG = "AudioManager"
+        private const val CHUNK_FRAMES = 1024
+        private const val FORMAT_TIMEOUT_MS = 2000L
+        private const val FADE_MS = 400L
+        private const val CROSSFADE_MS = 2000L
+        private const val STOP_FADE_MS = 1500L
+        private const val FULL_LEVEL = 1f
+        private const val DUCKED_LEVEL = 0.2f
+        
+        private fun createAudioTrack(sampleRate: Int, channels: Int): AudioTrack {
+            val channelMask = if (channels == 1) AudioFormat.CHANNEL_OUT_MONO else AudioFormat.CHANNEL_OUT_STEREO
+            val minBuffer = AudioTrack.getMinBufferSize(sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT)
+            return AudioTrack(
+                AudioAttributes.Builder()
+                    .setUsage(AudioAttributes.USAGE_MEDIA)
+                    .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                    .build(),
+                AudioFormat.Builder()
+                    .setSampleRate(sampleRate)
+                    .setChannelMask(channelMask)
+                    .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                    .build(),
+                maxOf(minBuffer, CHUNK_FRAMES * channels * 2 * 2),
+                AudioTrack.MODE_STREAM,
+                android.media.AudioManager.AUDIO_SESSION_ID_GENERATE
+            )
+        }
+        
+        /**
+         * Resamples and remaps a decoded cue to the loop's rate and channel count
+         */
+        private fun convert(cue: PcmTrack, sampleRate: Int, channels: Int): ShortArray {
+            if (cue.channelCount <= 0 || cue.length == 0) return ShortArray(0)
+            val sourceFrames = cue.length / cue.channelCount
+            val targetFrames = (sourceFrames.toLong() * sampleRate / cue.sampleRate).toInt()
+            val source = cue.samples
+            val result = ShortArray(targetFrames * channels)
+            for (frame in 0 until targetFrames) {
+                // Linear interpolation between the two nearest source frames
+                val position = frame.toDouble() * cue.sampleRate / sampleRate
+                val index = position.toInt().coerceAtMost(sourceFrames - 1)
+                val next = minOf(index + 1, sourceFrames - 1)
+                val fraction = position - index
+                for (channel in 0 until channels) {
+                    val sourceChannel = minOf(channel, cue.channelCount - 1)
+                    val a = source[index * cue.channelCount + sourceChannel]
+                    val b = source[next * cue.channelCount + sourceChannel]
+                    result[frame * channels + channel] = (a + (b - a) * fraction).toInt().toShort()
+                }
+            }
+            return result
+        }
     }
 }
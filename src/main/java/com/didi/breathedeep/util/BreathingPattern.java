@@ -0,0 +1,173 @@
+package com.didi.breathedeep.util
+
+import kotlin.math.PI
+import kotlin.math.cos
+
+/**
+ * One part of a breath cycle
+ */
+enum class BreathPhase {
+    INHALE,
+    HOLD_IN,
+    EXHALE,
+    HOLD_OUT
+}
+
+/**
+ * Timing of one breath cycle: inhale, hold, exhale, hold.
+ *
+ * [id] is what gets stored with a session as its technique; custom patterns share
+ * [CUSTOM_ID]. Call [compile] once per session and look positions up in the result.
+ */
+data class BreathingPattern(
+    val id: Int,
+    val inhaleMillis: Int,
+    val holdInMillis: Int,
+    val exhaleMillis: Int,
+    val holdOutMillis: Int
+) {
+    
+    init {
+        require(inhaleMillis > 0 && exhaleMillis > 0) { "Inhale and exhale must be positive" }
+        require(holdInMillis >= 0 && holdOutMillis >= 0) { "Holds cannot be negative" }
+    }
+    
+    val cycleMillis: Int
+        get() = inhaleMillis + holdInMillis + exhaleMillis + holdOutMillis
+    
+    /**
+     * Samples the cycle into a [BreathingTable] for constant-time lookups
+     */
+    fun compile(): BreathingTable = BreathingTable(this)
+    
+    /**
+     * Packs the pattern for an Intent extra or preference; see [fromIntArray]
+     */
+    fun toIntArray(): IntArray = intArrayOf(id, inhaleMillis, holdInMillis, exhaleMillis, holdOutMillis)
+    
+    companion object {
+        const val STEADY_ID = 0
+        const val BOX_ID = 1
+        const val RELAXING_ID = 2
+        const val COHERENT_ID = 3
+        const val CUSTOM_ID = 255
+        
+        /** Slow even breathing, the app's original 10 s in, 10 s out */
+        val STEADY = BreathingPattern(STEADY_ID, 10_000, 0, 10_000, 0)
+        
+        /** Box breathing, 4-4-4-4 */
+        val BOX = BreathingPattern(BOX_ID, 4_000, 4_000, 4_000, 4_000)
+        
+        /** 4-7-8 breathing */
+        val RELAXING = BreathingPattern(RELAXING_ID, 4_000, 7_000, 8_000, 0)
+        
+        /** Coherent breathing at 5.5 breaths per minute */
+        val COHERENT = BreathingPattern(COHERENT_ID, 5_500, 0, 5_500, 0)
+        
+        val PRESETS = listOf(STEADY, BOX, RELAXING, COHERENT)
+        
+        /**
+         * Builds a custom pattern from whole seconds
+         */
+        fun custom(inhaleSeconds: Int, holdInSeconds: Int, exhaleSeconds: Int, holdOutSeconds: Int): BreathingPattern {
+            return BreathingPattern(
+                CUSTOM_ID,
+                inhaleSeconds * 1000,
+                holdInSeconds * 1000,
+                exhaleSeconds * 1000,
+                holdOutSeconds * 1000
+            )
+        }
+        
+        /**
+         * Reverses [toIntArray]; falls back to [STEADY] for anything malformed
+         */
+        fun fromIntArray(values: IntArray?): BreathingPattern {
+            if (values == null || values.size != 5) return STEADY
+            return runCatching {
+                BreathingPattern(values[0], values[1], values[2], values[3], values[4])
+            }.getOrDefault(STEADY)
+        }
+    }
+}
+
+/**
+ * A [BreathingPattern] sampled once into fixed-step tables.
+ *
+ * Lung level (0 empty, 1 full) is eased with a half cosine through inhale and exhale
+ * and flat through holds. Lookups are an index into the table plus one linear blend,
+ * so renderers and cue scheduling can query it every frame without allocating.
+ */
+class BreathingTable(val pattern: BreathingPattern) {
+    
+    val cycleMillis = pattern.cycleMillis
+    
+    private val holdInStart = pattern.inhaleMillis
+    private val exhaleStart = holdInStart + pattern.holdInMillis
+    private val holdOutStart = exhaleStart + pattern.exhaleMillis
+    
+    // One entry per STEP_MILLIS plus a closing entry equal to the first, for blending
+    private val stepCount = (cycleMillis + STEP_MILLIS - 1) / STEP_MILLIS
+    private val levels = FloatArray(stepCount + 1)
+    private val phases = arrayOfNulls<BreathPhase>(stepCount + 1)
+    
+    init {
+        for (step in 0..stepCount) {
+            val t = minOf(step * STEP_MILLIS, cycleMillis) % cycleMillis
+            phases[step] = phaseAtCycleTime(t)
+            levels[step] = levelAtCycleTime(t)
+        }
+    }
+    
+    /**
+     * Lung level at a session time, 0 empty to 1 full
+     */
+    fun levelAt(elapsedMillis: Long): Float {
+        val t = (elapsedMillis % cycleMillis).toInt()
+        val step = t / STEP_MILLIS
+        val fraction = (t - step * STEP_MILLIS).toFloat() / STEP_MILLIS
+        return levels[step] + (levels[step + 1] - levels[step]) * fraction
+    }
+    
+    /**
+     * Phase at a session time
+     */
+    fun phaseAt(elapsedMillis: Long): BreathPhase {
+        return phases[(elapsedMillis % cycleMillis).toInt() / STEP_MILLIS]!!
+    }
+    
+    /**
+     * Milliseconds from a session time until the next phase begins, skipping empty holds
+     */
+    fun millisUntilNextPhase(elapsedMillis: Long): Long {
+        val t = (elapsedMillis % cycleMillis).toInt()
+        val next = when {
+            t < holdInStart -> if (pattern.holdInMillis > 0) holdInStart else exhaleStart
+            t < exhaleStart -> exhaleStart
+            t < holdOutStart -> if (pattern.holdOutMillis > 0) holdOutStart else cycleMillis
+            else -> cycleMillis
+        }
+        return (next - t).toLong()
+    }
+    
+    private fun phaseAtCycleTime(t: Int): BreathPhase = when {
+        t < holdInStart -> BreathPhase.INHALE
+        t < exhaleStart -> BreathPhase.HOLD_IN
+        t < holdOutStart -> BreathPhase.EXHALE
+        else -> BreathPhase.HOLD_OUT
+    }
+    
+    private fun levelAtCycleTime(t: Int): Float = when {
+        t < holdInStart -> ease(t.toFloat() / pattern.inhaleMillis)
+        t < exhaleStart -> 1f
+        t < holdOutStart -> 1f - ease((t - exhaleStart).toFloat() / pattern.exhaleMillis)
+        else -> 0f
+    }
+    
+    private fun ease(fraction: Float): Float = (0.5 - cos(fraction * PI) / 2.0).toFloat()
+    
+    companion object {
+        // 10 ms keeps the linear blend between entries visually exact
+        private const val STEP_MILLIS = 10
+    }
+}
@@ -0,0 +1,174 @@
+package com.didi.breathedeep.util
+
+import android.content.Context
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Paint
+import android.util.AttributeSet
+import android.view.View
+import kotlin.math.PI
+import kotlin.math.cos
+import kotlin.math.sin
+import kotlin.random.Random
+
+/**
+ * Single view that renders every rising bubble for the underwater theme.
+ *
+ * Bubble state lives in primitive arrays and is drawn in a single pass, so the
+ * bubble count can grow without adding views or animators. Positions are a function
+ * of the session time passed to [setSessionTime], so bubbles stand still whenever
+ * the session clock does.
+ */
+class BubbleParticleView @JvmOverloads constructor(
+    context: Context,
+    attrs: AttributeSet? = null,
+    defStyleAttr: Int = 0
+) : View(context, attrs, defStyleAttr) {
+    
+    private val paint = Paint().apply {
+        color = Color.WHITE
+        style = Paint.Style.FILL
+        isAntiAlias = true
+    }
+    
+    private val strokePaint = Paint().apply {
+        color = Color.WHITE
+        style = Paint.Style.STROKE
+        strokeWidth = 1f
+        isAntiAlias = true
+    }
+    
+    // Per-bubble state, indexed 0 until bubbleCount
+    private val baseX = FloatArray(MAX_BUBBLES)
+    private val startY = FloatArray(MAX_BUBBLES)
+    private val spawnSeconds = FloatArray(MAX_BUBBLES) // session time the bubble appeared
+    private val riseSpeed = FloatArray(MAX_BUBBLES) // px per second
+    private val radius = FloatArray(MAX_BUBBLES)
+    private val bubbleAlpha = FloatArray(MAX_BUBBLES)
+    private val wobblePhase = FloatArray(MAX_BUBBLES)
+    private val wobbleSpeed = FloatArray(MAX_BUBBLES) // radians per second
+    private val scalePhase = FloatArray(MAX_BUBBLES)
+    private val scaleSpeed = FloatArray(MAX_BUBBLES)
+    private val shineX = FloatArray(MAX_BUBBLES) // shine offset as a fraction of radius
+    private val shineY = FloatArray(MAX_BUBBLES)
+    private val shineSize = FloatArray(MAX_BUBBLES)
+    
+    /**
+     * Receives the duration of every onDraw pass, if set
+     */
+    var drawHistogram: FrameTimeHistogram? = null
+    
+    private var bubbleCount = DEFAULT_BUBBLES
+    private var sessionSeconds = 0f
+    private var sessionTimeSet = false
+    
+    /**
+     * Changes how many bubbles are drawn; new bubbles start below the bottom edge
+     */
+    fun setBubbleCount(count: Int) {
+        val clamped = count.coerceIn(0, MAX_BUBBLES)
+        for (i in bubbleCount until clamped) {
+            spawn(i, startBelow = true)
+        }
+        bubbleCount = clamped
+        invalidate()
+    }
+    
+    /**
+     * Moves every bubble to the given session time and respawns the ones that left the top
+     */
+    fun setSessionTime(elapsedMillis: Long) {
+        val seconds = elapsedMillis / MILLIS_PER_SECOND
+        if (!sessionTimeSet) {
+            // Bubbles laid out before the first update were placed at time zero, which is not
+            // the session's time when the screen is recreated mid-session; keep them in place
+            val shift = seconds - sessionSeconds
+            for (i in 0 until bubbleCount) {
+                spawnSeconds[i] += shift
+            }
+            sessionTimeSet = true
+        }
+        sessionSeconds = seconds
+        for (i in 0 until bubbleCount) {
+            if (currentY(i) < -radius[i] * MAX_SCALE) {
+                spawn(i, startBelow = true)
+            }
+        }
+        invalidate()
+    }
+    
+    override fun onSizeChanged(w: Int, h: Int, oldw: Int, oldh: Int) {
+        super.onSizeChanged(w, h, oldw, oldh)
+        // Scatter bubbles over the whole height so the screen is not empty at the start
+        for (i in 0 until bubbleCount) {
+            spawn(i, startBelow = false)
+        }
+    }
+    
+    private fun currentY(i: Int): Float {
+        return startY[i] - riseSpeed[i] * (sessionSeconds - spawnSeconds[i])
+    }
+    
+    override fun onDraw(canvas: Canvas) {
+        super.onDraw(canvas)
+        val drawStart = System.nanoTime()
+        
+        for (i in 0 until bubbleCount) {
+            val age = sessionSeconds - spawnSeconds[i]
+            val r = radius[i] * (1f + SCALE_AMPLITUDE * sin(scalePhase[i] + scaleSpeed[i] * age))
+            val cx = baseX[i] + WOBBLE_AMPLITUDE * sin(wobblePhase[i] + wobbleSpeed[i] * age)
+            val cy = startY[i] - riseSpeed[i] * age
+            val alpha = bubbleAlpha[i]
+            
+            // Main bubble
+            paint.alpha = (BODY_ALPHA * alpha).toInt()
+            canvas.drawCircle(cx, cy, r, paint)
+            strokePaint.alpha = (STROKE_ALPHA * alpha).toInt()
+            canvas.drawCircle(cx, cy, r, strokePaint)
+            
+            // Shine highlight
+            paint.alpha = (SHINE_ALPHA * alpha).toInt()
+            canvas.drawCircle(cx + r * shineX[i], cy - r * shineY[i], r * shineSize[i], paint)
+        }
+        
+        drawHistogram?.recordSince(drawStart)
+    }
+    
+    private fun spawn(i: Int, startBelow: Boolean) {
+        val size = Random.nextInt(10, 40).toFloat()
+        radius[i] = size / 2f - 1f
+        baseX[i] = Random.nextFloat() * width
+        startY[i] = if (startBelow) height + size else Random.nextFloat() * height
+        spawnSeconds[i] = sessionSeconds
+        bubbleAlpha[i] = Random.nextFloat() * 0.5f + 0.2f // 0.2 to 0.7 alpha
+        
+        // 15-30 seconds to rise across the view
+        val riseSeconds = Random.nextFloat() * 15f + 15f
+        riseSpeed[i] = (height + size * 2) / riseSeconds
+        
+        // 2-5 seconds per wobble, 2-4 seconds per pulse (one direction)
+        wobbleSpeed[i] = (PI / (Random.nextFloat() * 3f + 2f)).toFloat()
+        scaleSpeed[i] = (PI / (Random.nextFloat() * 2f + 2f)).toFloat()
+        wobblePhase[i] = Random.nextFloat() * TWO_PI
+        scalePhase[i] = Random.nextFloat() * TWO_PI
+        
+        val shineAngle = Math.toRadians((Random.nextFloat() * 45f + 45f).toDouble()) // 45-90 degrees
+        shineX[i] = 0.7f * cos(shineAngle).toFloat()
+        shineY[i] = 0.7f * sin(shineAngle).toFloat()
+        shineSize[i] = Random.nextFloat() * 0.2f + 0.1f // 10-30% of bubble size
+    }
+    
+    companion object {
+        const val DEFAULT_BUBBLES = 15
+        const val MAX_BUBBLES = 400
+        
+        private const val MILLIS_PER_SECOND = 1000f
+        private const val TWO_PI = (2 * PI).toFloat()
+        private const val WOBBLE_AMPLITUDE = 20f
+        private const val SCALE_AMPLITUDE = 0.2f
+        private const val MAX_SCALE = 1f + SCALE_AMPLITUDE
+        private const val BODY_ALPHA = 80f
+        private const val STROKE_ALPHA = 120f
+        private const val SHINE_ALPHA = 180f
+    }
+}
@@ -0,0 +1,214 @@
+package com.didi.breathedeep.util
+
+import android.os.Build
+import android.os.Handler
+import android.os.HandlerThread
+import android.view.Choreographer
+import android.view.FrameMetrics
+import android.view.Window
+import androidx.annotation.RequiresApi
+import com.didi.breathedeep.data.FrameSummary
+
+/**
+ * Records frame timing while a session runs.
+ *
+ * Whole-frame durations come from [FrameMetrics] on API 24+, or from Choreographer
+ * frame intervals on older devices. Each animation layer also gets its own histogram
+ * that the layer feeds with its per-frame draw or update time.
+ */
+class FrameMetricsRecorder(private val window: Window) {
+    
+    /**
+     * Whole-frame durations
+     */
+    val frames = FrameTimeHistogram()
+    
+    /**
+     * Called with every whole-frame duration and the current frame budget, if set.
+     * Runs on the frame metrics thread on API 24+, so it must be thread-safe.
+     */
+    var frameObserver: ((durationNanos: Long, budgetNanos: Long) -> Unit)? = null
+    
+    private val layers = LinkedHashMap<String, FrameTimeHistogram>()
+    private var frameBudgetNanos = DEFAULT_FRAME_BUDGET_NANOS
+    private var droppedFrames = 0
+    private var metricsThread: HandlerThread? = null
+    private var metricsListener: Any? = null
+    private var lastFrameNanos = 0L
+    private var recording = false
+    
+    private val choreographerCallback = object : Choreographer.FrameCallback {
+        override fun doFrame(frameTimeNanos: Long) {
+            if (!recording) return
+            if (lastFrameNanos != 0L) {
+                recordFrame(frameTimeNanos - lastFrameNanos)
+            }
+            lastFrameNanos = frameTimeNanos
+            Choreographer.getInstance().postFrameCallback(this)
+        }
+    }
+    
+    /**
+     * Histogram for one animation layer, created on first use
+     */
+    fun layer(name: String): FrameTimeHistogram {
+        return layers.getOrPut(name) { FrameTimeHistogram() }
+    }
+    
+    /**
+     * Starts recording frames
+     */
+    fun start() {
+        if (recording) return
+        recording = true
+        val refreshRate = window.decorView.display?.refreshRate ?: 0f
+        if (refreshRate > 0f) {
+            frameBudgetNanos = (NANOS_PER_SECOND / refreshRate).toLong()
+        }
+        
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            startFrameMetrics()
+        } else {
+            lastFrameNanos = 0L
+            Choreographer.getInstance().postFrameCallback(choreographerCallback)
+        }
+    }
+    
+    /**
+     * Stops recording; recorded data is kept
+     */
+    fun stop() {
+        if (!recording) return
+        recording = false
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            stopFrameMetrics()
+        } else {
+            Choreographer.getInstance().removeFrameCallback(choreographerCallback)
+        }
+    }
+    
+    /**
+     * Whole-frame summary stored with the session record
+     */
+    fun summary(): FrameSummary {
+        synchronized(frames) {
+            return FrameSummary(
+                totalFrames = frames.count(),
+                droppedFrames = droppedFrames,
+                p50Micros = frames.percentileMicros(50),
+                p95Micros = frames.percentileMicros(95),
+                p99Micros = frames.percentileMicros(99)
+            )
+        }
+    }
+    
+    /**
+     * One-line-per-layer text report for regression tracking
+     */
+    fun report(): String {
+        val builder = StringBuilder()
+        val summary = summary()
+        builder.append("frames=").append(summary.totalFrames)
+            .append(" dropped=").append(summary.droppedFrames)
+            .append(" budgetUs=").append(frameBudgetNanos / 1000)
+            .append(' ').append(frames.describe())
+        for ((name, histogram) in layers) {
+            builder.append('\n').append(name).append(' ').append(histogram.describe())
+        }
+        return builder.toString()
+    }
+    
+    private fun recordFrame(durationNanos: Long) {
+        synchronized(frames) {
+            frames.record(durationNanos)
+            if (durationNanos > frameBudgetNanos) {
+                // Every vsync the frame overran is a frame the user did not see
+                droppedFrames += ((durationNanos - 1) / frameBudgetNanos).toInt()
+            }
+        }
+        frameObserver?.invoke(durationNanos, frameBudgetNanos)
+    }
+    
+    @RequiresApi(Build.VERSION_CODES.N)
+    private fun startFrameMetrics() {
+        val thread = HandlerThread("frame-metrics").apply { start() }
+        val listener = Window.OnFrameMetricsAvailableListener { _, metrics, _ ->
+            recordFrame(metrics.getMetric(FrameMetrics.TOTAL_DURATION))
+        }
+        window.addOnFrameMetricsAvailableListener(listener, Handler(thread.looper))
+        metricsThread = thread
+        metricsListener = listener
+    }
+    
+    @RequiresApi(Build.VERSION_CODES.N)
+    private fun stopFrameMetrics() {
+        (metricsListener as? Window.OnFrameMetricsAvailableListener)?.let {
+            window.removeOnFrameMetricsAvailableListener(it)
+        }
+        metricsThread?.quitSafely()
+        metricsThread = null
+        metricsListener = null
+    }
+    
+    companion object {
+        private const val NANOS_PER_SECOND = 1_000_000_000f
+        private const val DEFAULT_FRAME_BUDGET_NANOS = 16_666_667L
+    }
+}
+
+/**
+ * Fixed-bucket histogram of durations with 0.1 ms resolution up to 100 ms
+ */
+class FrameTimeHistogram {
+    
+    private val buckets = IntArray(BUCKET_COUNT + 1) // last bucket collects overflow
+    private var count = 0
+    private var maxNanos = 0L
+    
+    /**
+     * Adds one duration
+     */
+    fun record(durationNanos: Long) {
+        val bucket = (durationNanos / BUCKET_NANOS).toInt().coerceIn(0, BUCKET_COUNT)
+        buckets[bucket]++
+        count++
+        if (durationNanos > maxNanos) maxNanos = durationNanos
+    }
+    
+    /**
+     * Adds the time elapsed since [startNanos], as returned by System.nanoTime()
+     */
+    fun recordSince(startNanos: Long) {
+        record(System.nanoTime() - startNanos)
+    }
+    
+    fun count(): Int = count
+    
+    /**
+     * Upper edge of the bucket holding the given percentile, in microseconds
+     */
+    fun percentileMicros(percent: Int): Int {
+        if (count == 0) return 0
+        val target = (count.toLong() * percent + 99) / 100
+        var seen = 0L
+        for (i in 0 until BUCKET_COUNT) {
+            seen += buckets[i]
+            if (seen >= target) return (i + 1) * BUCKET_MICROS
+        }
+        return (maxNanos / 1000).toInt()
+    }
+    
+    /**
+     * Percentiles as "n=.. p50=..us p95=..us p99=..us max=..us"
+     */
+    fun describe(): String {
+        return "n=$count p50=${percentileMicros(50)}us p95=${percentileMicros(95)}us " +
+            "p99=${percentileMicros(99)}us max=${maxNanos / 1000}us"
+    }
+    
+    companion object {
+        private const val BUCKET_MICROS = 100
+        private const val BUCKET_NANOS = BUCKET_MICROS * 1000L
+        private const val BUCKET_COUNT = 1000
+    }
+}
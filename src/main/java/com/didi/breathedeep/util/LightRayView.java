@@ -1,6 +1,7 @@
 package com.didi.breathedeep.util
 
 import android.content.Context
+import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.Paint
@@ -11,7 +12,11 @@ import kotlin.math.cos
 import kotlin.math.sin
 
 /**
- * Custom view that renders light ray effects from the top of the screen
+ * Custom view that renders light ray effects from the top of the screen.
+ *
+ * The rays are stroked once into a cached bitmap whenever the size or ray count
+ * changes. The session only animates rotation and alpha, which are applied by the
+ * RenderThread, so onDraw does not run again while the session plays.
  */
 class LightRayView @JvmOverloads constructor(
     context: Context,
@@ -27,8 +32,15 @@ class LightRayView @JvmOverloads constructor(
         isAntiAlias = true
     }
     
+    /**
+     * Receives the duration of every onDraw pass, if set
+     */
+    var drawHistogram: FrameTimeHistogram? = null
+    
     private val rayPaths = mutableListOf<Path>()
-    private val rayCount = 12
+    private var rayCount = DEFAULT_RAY_COUNT
+    private val bitmapPaint = Paint(Paint.FILTER_BITMAP_FLAG)
+    private var rayBitmap: Bitmap? = null
     
     init {
         // Initialize ray paths
@@ -37,11 +49,36 @@ class LightRayView @JvmOverloads constructor(
         }
     }
     
+    /**
+     * Changes how many rays are drawn
+     */
+    fun setRayCount(count: Int) {
+        val clamped = count.coerceIn(0, MAX_RAYS)
+        if (clamped == rayCount) return
+        while (rayPaths.size < clamped) {
+            rayPaths.add(Path())
+        }
+        rayCount = clamped
+        updateRayPaths()
+        renderRays()
+        invalidate()
+    }
+    
     override fun onSizeChanged(w: Int, h: Int, oldw: Int, oldh: Int) {
         super.onSizeChanged(w, h, oldw, oldh)
         updateRayPaths()
+        renderRays()
+    }
+    
+    override fun onDetachedFromWindow() {
+        super.onDetachedFromWindow()
+        // Not recycled: the RenderThread may still draw the last frame's display list from it
+        rayBitmap = null
     }
     
+    // The cached bitmap is a single draw, so alpha can be applied without an offscreen layer
+    override fun hasOverlappingRendering(): Boolean = false
+    
     private fun updateRayPaths() {
         val width = width.toFloat()
         val height = height.toFloat()
@@ -65,8 +102,17 @@ class LightRayView @JvmOverloads constructor(
         }
     }
     
-    override fun onDraw(canvas: Canvas) {
-        super.onDraw(canvas)
+    /**
+     * Strokes every ray into the cached bitmap
+     */
+    private fun renderRays() {
+        if (width <= 0 || height <= 0) return
+        val bitmap = rayBitmap?.takeIf { it.width == width && it.height == height }
+            ?: Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888).also {
+                rayBitmap = it
+            }
+        bitmap.eraseColor(Color.TRANSPARENT)
+        val bitmapCanvas = Canvas(bitmap)
         
         // Draw each ray with varying opacity
         for (i in 0 until rayCount) {
@@ -75,7 +121,22 @@ class LightRayView @JvmOverloads constructor(
             paint.alpha = alpha
             paint.strokeWidth = 2f + (i % 4)
             
-            canvas.drawPath(rayPaths[i], paint)
+            bitmapCanvas.drawPath(rayPaths[i], paint)
         }
     }
+    
+    override fun onDraw(canvas: Canvas) {
+        super.onDraw(canvas)
+        val drawStart = System.nanoTime()
+        
+        if (rayBitmap == null) renderRays()
+        rayBitmap?.let { canvas.drawBitmap(it, 0f, 0f, bitmapPaint) }
+        
+        drawHistogram?.recordSince(drawStart)
+    }
+    
+    companion object {
+        const val DEFAULT_RAY_COUNT = 12
+        private const val MAX_RAYS = 24
+    }
 }
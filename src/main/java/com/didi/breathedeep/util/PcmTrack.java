@@ -0,0 +1,183 @@
+package com.didi.breathedeep.util
+
+import android.content.Context
+import android.media.MediaCodec
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.util.Log
+import java.io.IOException
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+
+/**
+ * 16-bit interleaved PCM for one raw audio resource, decoded with MediaCodec.
+ *
+ * Samples become readable while decoding is still running, so playback can begin as
+ * soon as the first buffers are out of the decoder. [length] only grows, and the
+ * sample array is only ever replaced by a larger copy, so a reader never sees
+ * samples change underneath it.
+ */
+class PcmTrack private constructor() {
+    
+    private val formatKnown = CountDownLatch(1)
+    private val decoded = CountDownLatch(1)
+    
+    @Volatile
+    var samples = ShortArray(0)
+        private set
+    
+    /**
+     * Number of decoded samples (not frames) in [samples]
+     */
+    @Volatile
+    var length = 0
+        private set
+    
+    /**
+     * True once the whole resource is decoded; also set if decoding failed
+     */
+    @Volatile
+    var isComplete = false
+        private set
+    
+    var sampleRate = 0
+        private set
+    
+    var channelCount = 0
+        private set
+    
+    /**
+     * Waits until the sample rate and channel count are known; false if decoding failed
+     */
+    fun awaitFormat(timeoutMillis: Long): Boolean {
+        return formatKnown.await(timeoutMillis, TimeUnit.MILLISECONDS) && sampleRate > 0
+    }
+    
+    /**
+     * Waits until the whole resource is decoded
+     */
+    fun awaitComplete() {
+        decoded.await()
+    }
+    
+    private fun run(context: Context, resourceId: Int) {
+        val extractor = MediaExtractor()
+        var codec: MediaCodec? = null
+        try {
+            context.resources.openRawResourceFd(resourceId).use { fd ->
+                extractor.setDataSource(fd.fileDescriptor, fd.startOffset, fd.length)
+            }
+            val trackIndex = (0 until extractor.trackCount).firstOrNull {
+                extractor.getTrackFormat(it).getString(MediaFormat.KEY_MIME)?.startsWith("audio/") == true
+            } ?: throw IOException("No audio track in resource $resourceId")
+            extractor.selectTrack(trackIndex)
+            val format = extractor.getTrackFormat(trackIndex)
+            sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+            channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+            
+            // Size the buffer from the container's duration to avoid regrowing
+            if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                val durationUs = format.getLong(MediaFormat.KEY_DURATION)
+                val estimate = durationUs * sampleRate / 1_000_000L * channelCount
+                samples = ShortArray(estimate.coerceIn(0L, MAX_SAMPLES.toLong()).toInt())
+            }
+            
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME)!!)
+            codec.configure(format, null, null, 0)
+            codec.start()
+            drain(extractor, codec)
+        } catch (e: Exception) {
+            Log.w(TAG, "Could not decode audio resource $resourceId", e)
+        } finally {
+            codec?.let {
+                // stop() throws if the codec never started
+                runCatching { it.stop() }
+                it.release()
+            }
+            extractor.release()
+            isComplete = true
+            formatKnown.countDown()
+            decoded.countDown()
+        }
+    }
+    
+    private fun drain(extractor: MediaExtractor, codec: MediaCodec) {
+        val info = MediaCodec.BufferInfo()
+        var inputDone = false
+        var formatPublished = false
+        while (true) {
+            if (!inputDone) {
+                val inputIndex = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US)
+                if (inputIndex >= 0) {
+                    val input = codec.getInputBuffer(inputIndex)!!
+                    val size = extractor.readSampleData(input, 0)
+                    if (size < 0) {
+                        codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
+                        inputDone = true
+                    } else {
+                        codec.queueInputBuffer(inputIndex, 0, size, extractor.sampleTime, 0)
+                        extractor.advance()
+                    }
+                }
+            }
+            
+            val outputIndex = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US)
+            when {
+                outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED -> {
+                    // The decoder's output format is authoritative over the container's
+                    val outputFormat = codec.outputFormat
+                    sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+                    channelCount = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+                }
+                outputIndex >= 0 -> {
+                    if (!formatPublished) {
+                        formatPublished = true
+                        formatKnown.countDown()
+                    }
+                    if (info.size > 0) {
+                        val output = codec.getOutputBuffer(outputIndex)!!
+                        output.position(info.offset)
+                        output.limit(info.offset + info.size)
+                        append(output.order(ByteOrder.nativeOrder()).asShortBuffer())
+                    }
+                    codec.releaseOutputBuffer(outputIndex, false)
+                    if (info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) return
+                }
+            }
+        }
+    }
+    
+    private fun append(buffer: ShortBuffer) {
+        val count = buffer.remaining()
+        var target = samples
+        if (length + count > target.size) {
+            target = target.copyOf(maxOf(target.size * 2, length + count).coerceAtMost(MAX_SAMPLES))
+            if (length + count > target.size) throw IOException("Audio resource too long to loop")
+            samples = target
+        }
+        buffer.get(target, length, count)
+        // Publish the samples before the new length
+        length += count
+    }
+    
+    companion object {
+        private const val TAG = "PcmTrack"
+        private const val DEQUEUE_TIMEOUT_US = 10_000L
+        
+        // Two minutes of 48 kHz stereo; loops and cues are meant to be short
+        private const val MAX_SAMPLES = 48_000 * 2 * 120
+        
+        /**
+         * Starts decoding [resourceId] on [executor] and returns the track straight away
+         */
+        fun decode(context: Context, resourceId: Int, executor: Executor): PcmTrack {
+            val track = PcmTrack()
+            val appContext = context.applicationContext
+            executor.execute { track.run(appContext, resourceId) }
+            return track
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.didi.breathedeep.util
+
+import android.content.Context
+import android.os.Build
+import android.os.Handler
+import android.os.Looper
+import android.os.PowerManager
+import android.util.Log
+import androidx.annotation.RequiresApi
+
+/**
+ * Animation quality levels, from full fidelity down to the breathing circle alone
+ */
+enum class QualityTier(
+    val bubbleCount: Int,
+    val rippleAngleStep: Int,
+    val lightRayCount: Int,
+    val animateRipples: Boolean,
+    val animateLightRays: Boolean
+) {
+    HIGH(15, 5, 12, true, true),
+    MEDIUM(10, 10, 8, true, true),
+    LOW(5, 20, 6, false, true),
+    MINIMAL(0, 20, 6, false, false);
+    
+    fun lower(): QualityTier = values()[minOf(ordinal + 1, values().size - 1)]
+    
+    fun higher(): QualityTier = values()[maxOf(ordinal - 1, 0)]
+}
+
+/**
+ * Steps the session animations between [QualityTier]s at runtime.
+ *
+ * Recent frame durations are collected in a small ring buffer and evaluated once a
+ * second: a window with too many late frames drops one tier, and a sustained run of
+ * comfortable windows climbs back one tier. Thermal status and battery saver cap the
+ * highest tier allowed.
+ */
+class QualityGovernor(
+    context: Context,
+    private val onTierChanged: (QualityTier) -> Unit
+) {
+    
+    private val powerManager = context.getSystemService(Context.POWER_SERVICE) as PowerManager
+    private val handler = Handler(Looper.getMainLooper())
+    
+    // Written by the frame metrics thread, read on the main thread
+    private val recentFrames = LongArray(WINDOW_SIZE)
+    private var recentCount = 0
+    private var recentNext = 0
+    private var frameBudgetNanos = 16_666_667L
+    
+    private var thermalListener: Any? = null
+    private var thermalStatus = 0
+    private var healthyWindows = 0
+    private var running = false
+    
+    var tier: QualityTier = QualityTier.HIGH
+        private set
+    
+    private val evaluateRunnable = object : Runnable {
+        override fun run() {
+            evaluate()
+            if (running) handler.postDelayed(this, EVALUATION_INTERVAL_MS)
+        }
+    }
+    
+    /**
+     * Feeds one frame duration; may be called from any thread
+     */
+    fun onFrame(durationNanos: Long, budgetNanos: Long) {
+        synchronized(recentFrames) {
+            frameBudgetNanos = budgetNanos
+            recentFrames[recentNext] = durationNanos
+            recentNext = (recentNext + 1) % WINDOW_SIZE
+            if (recentCount < WINDOW_SIZE) recentCount++
+        }
+    }
+    
+    /**
+     * Starts periodic evaluation and thermal monitoring
+     */
+    fun start() {
+        if (running) return
+        running = true
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            registerThermalListener()
+        }
+        handler.postDelayed(evaluateRunnable, EVALUATION_INTERVAL_MS)
+    }
+    
+    /**
+     * Stops evaluation; the current tier is kept
+     */
+    fun stop() {
+        running = false
+        handler.removeCallbacks(evaluateRunnable)
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            unregisterThermalListener()
+        }
+        synchronized(recentFrames) {
+            recentCount = 0
+            recentNext = 0
+        }
+    }
+    
+    private fun evaluate() {
+        var late = 0
+        var frames = 0
+        synchronized(recentFrames) {
+            frames = recentCount
+            val lateThreshold = frameBudgetNanos + frameBudgetNanos / 5
+            for (i in 0 until recentCount) {
+                if (recentFrames[i] > lateThreshold) late++
+            }
+            recentCount = 0
+            recentNext = 0
+        }
+        
+        val ceiling = tierCeiling()
+        when {
+            tier.ordinal < ceiling.ordinal -> {
+                healthyWindows = 0
+                changeTier(ceiling, "thermal status $thermalStatus, power save ${powerManager.isPowerSaveMode}")
+            }
+            frames < MIN_FRAMES_PER_WINDOW -> Unit
+            late * 100 > frames * STEP_DOWN_LATE_PERCENT && tier != QualityTier.MINIMAL -> {
+                healthyWindows = 0
+                changeTier(tier.lower(), "$late of $frames frames late")
+            }
+            late * 100 <= frames * STEP_UP_LATE_PERCENT -> {
+                healthyWindows++
+                val target = tier.higher()
+                if (healthyWindows >= WINDOWS_BEFORE_STEP_UP && target != tier && target.ordinal >= ceiling.ordinal) {
+                    healthyWindows = 0
+                    changeTier(target, "$late of $frames frames late for $WINDOWS_BEFORE_STEP_UP s")
+                }
+            }
+            else -> healthyWindows = 0
+        }
+    }
+    
+    /**
+     * Highest tier allowed by the device's thermal state and battery saver
+     */
+    private fun tierCeiling(): QualityTier {
+        val thermalCeiling = when {
+            thermalStatus >= PowerManager.THERMAL_STATUS_CRITICAL -> QualityTier.MINIMAL
+            thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE -> QualityTier.LOW
+            thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE -> QualityTier.MEDIUM
+            else -> QualityTier.HIGH
+        }
+        val powerCeiling = if (powerManager.isPowerSaveMode) QualityTier.MEDIUM else QualityTier.HIGH
+        return if (thermalCeiling.ordinal > powerCeiling.ordinal) thermalCeiling else powerCeiling
+    }
+    
+    private fun changeTier(newTier: QualityTier, reason: String) {
+        if (newTier == tier) return
+        Log.i(TAG, "Animation quality $tier -> $newTier ($reason)")
+        tier = newTier
+        onTierChanged(newTier)
+    }
+    
+    @RequiresApi(Build.VERSION_CODES.Q)
+    private fun registerThermalListener() {
+        thermalStatus = powerManager.currentThermalStatus
+        val listener = PowerManager.OnThermalStatusChangedListener { status ->
+            thermalStatus = status
+            // React to heating up straight away rather than at the next window
+            if (running && tierCeiling().ordinal > tier.ordinal) evaluate()
+        }
+        powerManager.addThermalStatusListener(listener)
+        thermalListener = listener
+    }
+    
+    @RequiresApi(Build.VERSION_CODES.Q)
+    private fun unregisterThermalListener() {
+        (thermalListener as? PowerManager.OnThermalStatusChangedListener)?.let {
+            powerManager.removeThermalStatusListener(it)
+        }
+        thermalListener = null
+    }
+    
+    companion object {
+        private const val TAG = "QualityGovernor"
+        private const val WINDOW_SIZE = 240
+        private const val EVALUATION_INTERVAL_MS = 1000L
+        private const val MIN_FRAMES_PER_WINDOW = 20
+        private const val STEP_DOWN_LATE_PERCENT = 10
+        private const val STEP_UP_LATE_PERCENT = 1
+        private const val WINDOWS_BEFORE_STEP_UP = 5
+    }
+}
@@ -4,9 +4,9 @@ import android.content.Context
 import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.Paint
-import android.graphics.Path
 import android.util.AttributeSet
 import android.view.View
+import kotlin.math.PI
 import kotlin.math.cos
 import kotlin.math.sin
 
@@ -27,52 +27,119 @@ class RippleView @JvmOverloads constructor(
         isAntiAlias = true
     }
     
-    private val ripplePath = Path()
+    /**
+     * Receives the duration of every onDraw pass, if set
+     */
+    var drawHistogram: FrameTimeHistogram? = null
+    
     private var phase = 0f
     private val rippleCount = 5
     private val waveAmplitude = 8f
     
+    // Unit circle and wave tables, one entry per vertex around the ring
+    private var angleStep = DEFAULT_ANGLE_STEP
+    private var segmentCount = 0
+    private var unitCos = FloatArray(0)
+    private var unitSin = FloatArray(0)
+    private var waveSin = FloatArray(0)
+    private var waveCos = FloatArray(0)
+    
+    // Line segments for one ring: (x0, y0, x1, y1) per segment
+    private var lineBuffer = FloatArray(0)
+    
+    init {
+        buildTables()
+    }
+    
+    /**
+     * Sets the angle in degrees between ring vertices; larger steps draw coarser rings
+     */
+    fun setAngleStep(step: Int) {
+        val clamped = step.coerceIn(1, 90)
+        if (clamped == angleStep) return
+        angleStep = clamped
+        buildTables()
+        invalidate()
+    }
+    
+    private fun buildTables() {
+        segmentCount = 360 / angleStep
+        unitCos = FloatArray(segmentCount + 1)
+        unitSin = FloatArray(segmentCount + 1)
+        waveSin = FloatArray(segmentCount + 1)
+        waveCos = FloatArray(segmentCount + 1)
+        lineBuffer = FloatArray(segmentCount * 4)
+        for (i in 0..segmentCount) {
+            // Spread vertices evenly so the ring closes even when the step does not divide 360
+            val radian = 2 * PI * i / segmentCount
+            unitCos[i] = cos(radian).toFloat()
+            unitSin[i] = sin(radian).toFloat()
+            waveSin[i] = sin(radian * WAVE_COUNT).toFloat()
+            waveCos[i] = cos(radian * WAVE_COUNT).toFloat()
+        }
+    }
+    
     /**
      * Sets the current phase of the ripple animation (0-1)
      */
     fun setPhase(phase: Float) {
+        if (this.phase == phase) return
         this.phase = phase
         invalidate()
     }
     
     override fun onDraw(canvas: Canvas) {
         super.onDraw(canvas)
+        val drawStart = System.nanoTime()
         
         val centerX = width / 2f
         val centerY = height / 2f
         
+        // sin(8a + 2pi*phase) = sin(8a)cos(2pi*phase) + cos(8a)sin(2pi*phase)
+        val phaseIndex = ((phase - phase.toInt()) * PHASE_STEPS).toInt() % PHASE_STEPS
+        val phaseCos = PHASE_COS[phaseIndex] * waveAmplitude
+        val phaseSin = PHASE_SIN[phaseIndex] * waveAmplitude
+        
         // Draw multiple ripple circles with wave effect
         for (i in 0 until rippleCount) {
             val radius = 50f + (i * 60f) + (phase * 100f)
             
-            ripplePath.reset()
-            
-            // Create wavy circle path
-            for (angle in 0..360 step 5) {
-                val radian = Math.toRadians(angle.toDouble())
-                val waveOffset = waveAmplitude * sin(radian * 8 + phase * Math.PI * 2).toFloat()
-                val x = centerX + (radius + waveOffset) * cos(radian).toFloat()
-                val y = centerY + (radius + waveOffset) * sin(radian).toFloat()
-                
-                if (angle == 0) {
-                    ripplePath.moveTo(x, y)
-                } else {
-                    ripplePath.lineTo(x, y)
+            // Build the wavy circle as connected line segments
+            var prevX = 0f
+            var prevY = 0f
+            for (v in 0..segmentCount) {
+                val r = radius + waveSin[v] * phaseCos + waveCos[v] * phaseSin
+                val x = centerX + r * unitCos[v]
+                val y = centerY + r * unitSin[v]
+                if (v > 0) {
+                    val offset = (v - 1) * 4
+                    lineBuffer[offset] = prevX
+                    lineBuffer[offset + 1] = prevY
+                    lineBuffer[offset + 2] = x
+                    lineBuffer[offset + 3] = y
                 }
+                prevX = x
+                prevY = y
             }
             
-            ripplePath.close()
-            
             // Adjust opacity based on radius (fade out as they expand)
             val alphaFactor = 1f - (radius / (rippleCount * 100f + 100f))
             paint.alpha = (80 * alphaFactor).toInt()
             
-            canvas.drawPath(ripplePath, paint)
+            canvas.drawLines(lineBuffer, 0, segmentCount * 4, paint)
         }
+        
+        drawHistogram?.recordSince(drawStart)
+    }
+    
+    companion object {
+        const val DEFAULT_ANGLE_STEP = 5
+        
+        private const val WAVE_COUNT = 8
+        private const val PHASE_STEPS = 512
+        
+        // cos/sin of 2*pi*phase, sampled finely enough that stepping is invisible
+        private val PHASE_COS = FloatArray(PHASE_STEPS) { cos(2 * PI * it / PHASE_STEPS).toFloat() }
+        private val PHASE_SIN = FloatArray(PHASE_STEPS) { sin(2 * PI * it / PHASE_STEPS).toFloat() }
     }
 }
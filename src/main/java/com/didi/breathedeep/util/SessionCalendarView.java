@@ -0,0 +1,261 @@
+package com.didi.breathedeep.util
+
+import android.content.Context
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Paint
+import android.graphics.Typeface
+import android.util.AttributeSet
+import android.view.MotionEvent
+import android.view.View
+import androidx.core.content.ContextCompat
+import com.didi.breathedeep.R
+import com.didi.breathedeep.data.SessionAggregates
+import java.text.DateFormatSymbols
+import java.text.SimpleDateFormat
+import java.util.Calendar
+import java.util.Locale
+import java.util.TimeZone
+import java.util.concurrent.TimeUnit
+
+/**
+ * Month calendar that highlights the days with completed sessions.
+ *
+ * Days are local epoch days, as in [SessionAggregates]. The view only knows the
+ * minutes of the month it shows: when the month changes it reports the days it
+ * needs through [onMonthChanged], and the owner answers with [setDayMinutes].
+ * Drawing a month is one pass over its cells, with nothing allocated in onDraw.
+ */
+class SessionCalendarView @JvmOverloads constructor(
+    context: Context,
+    attrs: AttributeSet? = null,
+    defStyleAttr: Int = 0
+) : View(context, attrs, defStyleAttr) {
+    
+    private val density = resources.displayMetrics.density
+    private val headerHeight = 48 * density
+    private val weekdayHeight = 28 * density
+    private val maxCellHeight = 44 * density
+    
+    private val titlePaint = Paint(Paint.ANTI_ALIAS_FLAG).apply {
+        color = Color.WHITE
+        textAlign = Paint.Align.CENTER
+        textSize = 18 * density
+        typeface = Typeface.DEFAULT_BOLD
+    }
+    
+    private val weekdayPaint = Paint(Paint.ANTI_ALIAS_FLAG).apply {
+        color = ContextCompat.getColor(context, R.color.light_aqua)
+        textAlign = Paint.Align.CENTER
+        textSize = 12 * density
+    }
+    
+    private val dayPaint = Paint(Paint.ANTI_ALIAS_FLAG).apply {
+        color = Color.WHITE
+        textAlign = Paint.Align.CENTER
+        textSize = 14 * density
+    }
+    
+    private val todayPaint = Paint(dayPaint).apply {
+        color = ContextCompat.getColor(context, R.color.soft_gold)
+        typeface = Typeface.DEFAULT_BOLD
+    }
+    
+    private val highlightPaint = Paint(Paint.ANTI_ALIAS_FLAG).apply {
+        color = ContextCompat.getColor(context, R.color.aqua)
+        style = Paint.Style.FILL
+    }
+    
+    private val selectionPaint = Paint(Paint.ANTI_ALIAS_FLAG).apply {
+        color = Color.WHITE
+        style = Paint.Style.STROKE
+        strokeWidth = 2 * density
+    }
+    
+    // UTC, so that midnight on a date maps exactly onto its epoch day number
+    private val month = Calendar.getInstance(TimeZone.getTimeZone("UTC"))
+    private val firstDayOfWeek = Calendar.getInstance().firstDayOfWeek
+    private val titleFormat = SimpleDateFormat("LLLL yyyy", Locale.getDefault()).apply {
+        timeZone = TimeZone.getTimeZone("UTC")
+    }
+    private val dayLabels = Array(MAX_DAYS) { (it + 1).toString() }
+    private val weekdayLabels = Array(DAYS_PER_WEEK) { column ->
+        val weekday = (firstDayOfWeek - 1 + column) % DAYS_PER_WEEK + 1
+        DateFormatSymbols.getInstance().shortWeekdays[weekday].take(1)
+    }
+    
+    private var title = ""
+    private var leadingBlanks = 0
+    private val minutes = IntArray(MAX_DAYS)
+    private var cellWidth = 0f
+    private var cellHeight = 0f
+    
+    /**
+     * Local epoch day of the first day of the month shown
+     */
+    var firstDayShown: Long = 0
+        private set
+    
+    /**
+     * Number of days in the month shown
+     */
+    var daysShown: Int = 0
+        private set
+    
+    /**
+     * The highlighted day, or null for none
+     */
+    var selectedDay: Long? = null
+        set(value) {
+            field = value
+            invalidate()
+        }
+    
+    /**
+     * Called with the local epoch day the user taps
+     */
+    var onDaySelected: ((epochDay: Long) -> Unit)? = null
+    
+    /**
+     * Called with the days of a newly shown month; answer with [setDayMinutes]
+     */
+    var onMonthChanged: ((firstDay: Long, dayCount: Int) -> Unit)? = null
+    
+    init {
+        val today = Calendar.getInstance()
+        showMonth(today.get(Calendar.YEAR), today.get(Calendar.MONTH))
+    }
+    
+    /**
+     * Shows a month, where [monthOfYear] is a [Calendar] month constant
+     */
+    fun showMonth(year: Int, monthOfYear: Int) {
+        month.clear()
+        month.set(year, monthOfYear, 1)
+        firstDayShown = TimeUnit.MILLISECONDS.toDays(month.timeInMillis)
+        daysShown = month.getActualMaximum(Calendar.DAY_OF_MONTH)
+        leadingBlanks = (month.get(Calendar.DAY_OF_WEEK) - firstDayOfWeek + DAYS_PER_WEEK) % DAYS_PER_WEEK
+        title = titleFormat.format(month.time)
+        minutes.fill(0)
+        invalidate()
+        onMonthChanged?.invoke(firstDayShown, daysShown)
+    }
+    
+    /**
+     * Supplies the minutes per day starting at [firstDay]; ignored if another month is shown by now
+     */
+    fun setDayMinutes(firstDay: Long, dayMinutes: IntArray) {
+        if (firstDay != firstDayShown) return
+        System.arraycopy(dayMinutes, 0, minutes, 0, minOf(dayMinutes.size, daysShown))
+        invalidate()
+    }
+    
+    override fun onMeasure(widthMeasureSpec: Int, heightMeasureSpec: Int) {
+        val width = MeasureSpec.getSize(widthMeasureSpec)
+        val cell = minOf((width - paddingLeft - paddingRight) / DAYS_PER_WEEK.toFloat(), maxCellHeight)
+        val desired = (paddingTop + paddingBottom + headerHeight + weekdayHeight + cell * MAX_ROWS).toInt()
+        setMeasuredDimension(width, resolveSize(desired, heightMeasureSpec))
+    }
+    
+    override fun onSizeChanged(w: Int, h: Int, oldw: Int, oldh: Int) {
+        super.onSizeChanged(w, h, oldw, oldh)
+        cellWidth = (w - paddingLeft - paddingRight) / DAYS_PER_WEEK.toFloat()
+        cellHeight = (h - paddingTop - paddingBottom - headerHeight - weekdayHeight) / MAX_ROWS
+    }
+    
+    override fun onDraw(canvas: Canvas) {
+        super.onDraw(canvas)
+        val left = paddingLeft.toFloat()
+        val top = paddingTop.toFloat()
+        
+        // Month title with previous and next arrows
+        val titleBaseline = top + headerHeight / 2 - (titlePaint.descent() + titlePaint.ascent()) / 2
+        canvas.drawText(title, width / 2f, titleBaseline, titlePaint)
+        canvas.drawText(PREVIOUS_ARROW, left + cellWidth / 2, titleBaseline, titlePaint)
+        canvas.drawText(NEXT_ARROW, width - paddingRight - cellWidth / 2, titleBaseline, titlePaint)
+        
+        val weekdayBaseline = top + headerHeight + weekdayHeight / 2 -
+            (weekdayPaint.descent() + weekdayPaint.ascent()) / 2
+        for (column in 0 until DAYS_PER_WEEK) {
+            canvas.drawText(weekdayLabels[column], left + cellWidth * (column + 0.5f), weekdayBaseline, weekdayPaint)
+        }
+        
+        val gridTop = top + headerHeight + weekdayHeight
+        val radius = minOf(cellWidth, cellHeight) * 0.4f
+        val textOffset = -(dayPaint.descent() + dayPaint.ascent()) / 2
+        val today = SessionAggregates.epochDay(System.currentTimeMillis())
+        val selected = selectedDay
+        for (day in 0 until daysShown) {
+            val cell = leadingBlanks + day
+            val cx = left + cellWidth * (cell % DAYS_PER_WEEK + 0.5f)
+            val cy = gridTop + cellHeight * (cell / DAYS_PER_WEEK + 0.5f)
+            val epochDay = firstDayShown + day
+            
+            if (minutes[day] > 0) {
+                // Longer practice reads as a stronger highlight
+                val strength = minOf(minutes[day], FULL_HIGHLIGHT_MINUTES).toFloat() / FULL_HIGHLIGHT_MINUTES
+                highlightPaint.alpha = (MIN_HIGHLIGHT_ALPHA + (255 - MIN_HIGHLIGHT_ALPHA) * strength).toInt()
+                canvas.drawCircle(cx, cy, radius, highlightPaint)
+            }
+            if (epochDay == selected) {
+                canvas.drawCircle(cx, cy, radius, selectionPaint)
+            }
+            canvas.drawText(dayLabels[day], cx, cy + textOffset, if (epochDay == today) todayPaint else dayPaint)
+        }
+    }
+    
+    override fun onTouchEvent(event: MotionEvent): Boolean {
+        when (event.actionMasked) {
+            MotionEvent.ACTION_DOWN -> return true
+            MotionEvent.ACTION_UP -> {
+                handleTap(event.x, event.y)
+                performClick()
+                return true
+            }
+        }
+        return super.onTouchEvent(event)
+    }
+    
+    override fun performClick(): Boolean {
+        return super.performClick()
+    }
+    
+    private fun handleTap(x: Float, y: Float) {
+        val localX = x - paddingLeft
+        val localY = y - paddingTop
+        if (localY < headerHeight) {
+            when {
+                localX < cellWidth * 2 -> shiftMonth(-1)
+                localX > cellWidth * (DAYS_PER_WEEK - 2) -> shiftMonth(1)
+            }
+            return
+        }
+        
+        val gridY = localY - headerHeight - weekdayHeight
+        if (gridY < 0 || localX < 0 || cellWidth <= 0f || cellHeight <= 0f) return
+        val column = (localX / cellWidth).toInt()
+        val row = (gridY / cellHeight).toInt()
+        if (column >= DAYS_PER_WEEK || row >= MAX_ROWS) return
+        val day = row * DAYS_PER_WEEK + column - leadingBlanks
+        if (day !in 0 until daysShown) return
+        
+        val epochDay = firstDayShown + day
+        selectedDay = epochDay
+        onDaySelected?.invoke(epochDay)
+    }
+    
+    private fun shiftMonth(delta: Int) {
+        month.add(Calendar.MONTH, delta)
+        showMonth(month.get(Calendar.YEAR), month.get(Calendar.MONTH))
+    }
+    
+    companion object {
+        private const val DAYS_PER_WEEK = 7
+        private const val MAX_ROWS = 6
+        private const val MAX_DAYS = 31
+        private const val FULL_HIGHLIGHT_MINUTES = 30
+        private const val MIN_HIGHLIGHT_ALPHA = 90
+        private const val PREVIOUS_ARROW = "‹"
+        private const val NEXT_ARROW = "›"
+    }
+}
@@ -0,0 +1,65 @@
+package com.didi.breathedeep.util
+
+import android.view.Choreographer
+import kotlin.math.PI
+import kotlin.math.cos
+
+/**
+ * Single frame clock for a meditation session.
+ *
+ * One Choreographer callback hands the active session time, usually read from a
+ * [SessionTimer], to [onFrame] every frame. Layers computed from that time stay in phase with each other and with
+ * the countdown, however often the session is paused.
+ */
+class SessionClock(
+    private val sessionTime: () -> Long,
+    private val onFrame: (elapsedMillis: Long) -> Unit
+) : Choreographer.FrameCallback {
+    
+    var isRunning = false
+        private set
+    
+    /**
+     * Starts dispatching frames
+     */
+    fun start() {
+        if (isRunning) return
+        isRunning = true
+        Choreographer.getInstance().postFrameCallback(this)
+    }
+    
+    /**
+     * Stops dispatching frames; layers keep their last frame on screen
+     */
+    fun pause() {
+        if (!isRunning) return
+        isRunning = false
+        Choreographer.getInstance().removeFrameCallback(this)
+    }
+    
+    override fun doFrame(frameTimeNanos: Long) {
+        if (!isRunning) return
+        onFrame(sessionTime())
+        // onFrame may have paused the clock
+        if (isRunning) Choreographer.getInstance().postFrameCallback(this)
+    }
+    
+    companion object {
+        /**
+         * Position within a repeating cycle, 0 until 1
+         */
+        fun cycle(elapsedMillis: Long, periodMillis: Long): Float {
+            return (elapsedMillis % periodMillis).toFloat() / periodMillis
+        }
+        
+        /**
+         * Eases from 0 to 1 over [halfPeriodMillis] and back again, matching a
+         * reversing animator with an AccelerateDecelerateInterpolator
+         */
+        fun easedPingPong(elapsedMillis: Long, halfPeriodMillis: Long): Float {
+            val t = cycle(elapsedMillis, halfPeriodMillis * 2) * 2f
+            val fraction = if (t <= 1f) t else 2f - t
+            return (cos((fraction + 1) * PI) / 2.0 + 0.5).toFloat()
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.didi.breathedeep.util
+
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+
+/**
+ * Countdown for a meditation session based on [SystemClock.elapsedRealtime].
+ *
+ * Active time is accumulated across pauses rather than counted from ticks, so a late
+ * tick never moves the end of the session. Display updates are scheduled for the
+ * moment the remaining whole second changes, and the finish callback is scheduled
+ * for the exact end time. Pausing and resuming only reposts two preallocated runnables.
+ */
+class SessionTimer(
+    private val durationMillis: Long,
+    private val listener: Listener,
+    private val clock: Clock = Clock.SYSTEM,
+    private val scheduler: Scheduler = Scheduler.mainThread()
+) {
+    
+    /**
+     * Monotonic time source, replaceable in tests
+     */
+    fun interface Clock {
+        fun elapsedRealtime(): Long
+        
+        companion object {
+            val SYSTEM = Clock { SystemClock.elapsedRealtime() }
+        }
+    }
+    
+    /**
+     * Runs callbacks after a delay, replaceable in tests
+     */
+    interface Scheduler {
+        fun postDelayed(runnable: Runnable, delayMillis: Long)
+        
+        fun removeCallbacks(runnable: Runnable)
+        
+        companion object {
+            /**
+             * Runs callbacks on the main thread
+             */
+            fun mainThread(): Scheduler {
+                val handler = Handler(Looper.getMainLooper())
+                return object : Scheduler {
+                    override fun postDelayed(runnable: Runnable, delayMillis: Long) {
+                        handler.postDelayed(runnable, delayMillis)
+                    }
+                    
+                    override fun removeCallbacks(runnable: Runnable) {
+                        handler.removeCallbacks(runnable)
+                    }
+                }
+            }
+        }
+    }
+    
+    interface Listener {
+        /**
+         * Called on start and whenever the remaining whole second changes
+         */
+        fun onSecond(remainingMillis: Long)
+        
+        fun onFinish()
+    }
+    
+    private var accumulatedMillis = 0L
+    private var resumedAt = 0L
+    
+    var isRunning = false
+        private set
+    
+    var isFinished = false
+        private set
+    
+    private val tickRunnable = Runnable { tick() }
+    private val finishRunnable = Runnable { finish() }
+    
+    /**
+     * Starts or resumes counting down
+     */
+    fun start() {
+        if (isRunning || isFinished) return
+        isRunning = true
+        resumedAt = clock.elapsedRealtime()
+        tick()
+        if (isRunning) scheduler.postDelayed(finishRunnable, remainingMillis())
+    }
+    
+    /**
+     * Stops counting; active time so far is kept
+     */
+    fun pause() {
+        if (!isRunning) return
+        accumulatedMillis += clock.elapsedRealtime() - resumedAt
+        isRunning = false
+        scheduler.removeCallbacks(tickRunnable)
+        scheduler.removeCallbacks(finishRunnable)
+    }
+    
+    /**
+     * Active session time so far, never more than the duration
+     */
+    fun elapsedMillis(): Long {
+        val running = if (isRunning) clock.elapsedRealtime() - resumedAt else 0L
+        return minOf(durationMillis, accumulatedMillis + running)
+    }
+    
+    fun remainingMillis(): Long = durationMillis - elapsedMillis()
+    
+    private fun tick() {
+        val remaining = remainingMillis()
+        if (remaining <= 0L) {
+            finish()
+            return
+        }
+        listener.onSecond(remaining)
+        
+        // The rounded-up second shown to the user changes when a whole second is crossed
+        val untilNextSecond = remaining % MILLIS_PER_SECOND
+        scheduler.postDelayed(tickRunnable, if (untilNextSecond == 0L) MILLIS_PER_SECOND else untilNextSecond)
+    }
+    
+    private fun finish() {
+        if (isFinished) return
+        isFinished = true
+        isRunning = false
+        accumulatedMillis = durationMillis
+        scheduler.removeCallbacks(tickRunnable)
+        scheduler.removeCallbacks(finishRunnable)
+        listener.onFinish()
+    }
+    
+    companion object {
+        private const val MILLIS_PER_SECOND = 1000L
+    }
+}
@@ -0,0 +1,78 @@
+package com.didi.breathedeep.util
+
+import android.app.Activity
+import android.os.Build
+import android.os.Process
+import android.os.SystemClock
+import android.os.Trace
+import android.util.Log
+import android.view.ViewTreeObserver
+
+/**
+ * Milestones of a cold start, measured from process start.
+ *
+ * Each milestone is logged once with its offset and also emitted as a trace section
+ * name, so it shows up in both logcat and system traces. The two numbers that matter
+ * are [FIRST_FRAME] and [INTERACTIVE].
+ */
+object StartupTrace {
+    
+    const val FIRST_FRAME = "first frame"
+    const val INTERACTIVE = "interactive"
+    
+    private const val TAG = "StartupTrace"
+    
+    // Before API 24 the best available origin is when this class is first loaded
+    private val processStart = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+        Process.getStartElapsedRealtime()
+    } else {
+        SystemClock.elapsedRealtime()
+    }
+    
+    private val marks = LinkedHashMap<String, Long>()
+    
+    /**
+     * Records a milestone; later calls with the same name are ignored
+     */
+    fun mark(name: String) {
+        val offset = SystemClock.elapsedRealtime() - processStart
+        synchronized(marks) {
+            if (marks.containsKey(name)) return
+            marks[name] = offset
+        }
+        Trace.beginSection("startup: $name")
+        Trace.endSection()
+        Log.i(TAG, "$name at +$offset ms")
+    }
+    
+    /**
+     * Records [name] once the activity's window has drawn its first frame
+     */
+    fun markAfterFirstDraw(activity: Activity, name: String, then: (() -> Unit)? = null) {
+        val decorView = activity.window.decorView
+        val listener = object : ViewTreeObserver.OnDrawListener {
+            private var drawn = false
+            
+            override fun onDraw() {
+                if (drawn) return
+                drawn = true
+                // Listeners cannot be removed while the tree is dispatching onDraw
+                decorView.post {
+                    decorView.viewTreeObserver.removeOnDrawListener(this)
+                    mark(name)
+                    then?.invoke()
+                }
+            }
+        }
+        decorView.viewTreeObserver.addOnDrawListener(listener)
+    }
+    
+    /**
+     * All milestones so far as "name=+ms" pairs
+     */
+    fun report(): String {
+        synchronized(marks) {
+            return marks.entries.joinToString(" ") { "${it.key}=+${it.value}ms" }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.didi.breathedeep.data
+
+/**
+ * Brute-force streak figures over a set of epoch days, the reference the streak tests check against
+ */
+object DayRuns {
+    
+    /**
+     * Length of the run of consecutive days ending on [day]
+     */
+    fun endingOn(days: Set<Long>, day: Long): Int {
+        var length = 0
+        while (day - length in days) {
+            length++
+        }
+        return length
+    }
+    
+    /**
+     * Length of the longest run of consecutive days
+     */
+    fun longest(days: Set<Long>): Int {
+        var longest = 0
+        for (day in days) {
+            if (day - 1 !in days) {
+                longest = maxOf(longest, 1 + countAfter(days, day))
+            }
+        }
+        return longest
+    }
+    
+    /**
+     * The streak as seen on [today]: the run ending on the latest day if that was today or yesterday
+     */
+    fun current(days: Set<Long>, today: Long): Int {
+        val last = days.maxOrNull() ?: return 0
+        return if (today - last <= 1) endingOn(days, last) else 0
+    }
+    
+    /**
+     * Number of consecutive days straight after [day]
+     */
+    private fun countAfter(days: Set<Long>, day: Long): Int {
+        var count = 0
+        while (day + count + 1 in days) {
+            count++
+        }
+        return count
+    }
+}
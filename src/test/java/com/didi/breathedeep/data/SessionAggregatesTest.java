@@ -0,0 +1,243 @@
+package com.didi.breathedeep.data
+
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.time.Duration
+import java.time.Instant
+import java.time.LocalDate
+import java.time.LocalTime
+import java.time.ZoneId
+import java.time.ZonedDateTime
+import java.util.Random
+import java.util.TimeZone
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+/**
+ * Checks how sessions are given their local day, and the streaks and day minutes built
+ * from those days, against a brute-force [java.time] reference. Sessions are generated
+ * at random instants in zones with DST, half-hour and date-line offsets, for users who
+ * travel between them, around DST changes and year ends.
+ */
+class SessionAggregatesTest {
+    
+    @get:Rule
+    val folder = TemporaryFolder()
+    
+    private val random = Random(SEED)
+    
+    /**
+     * A generated session with the day the reference assigns it: its start's date in the
+     * zone it was started in
+     */
+    private class Sample(val session: SessionData, val day: Long)
+    
+    @Test
+    fun epochDayIsTheDateInTheSessionZone() {
+        val first = ANCHORS.first().atStartOfDay(ZoneId.of("UTC")).toInstant()
+        val spanSeconds = Duration.between(first, ANCHORS.last().plusDays(30).atStartOfDay(ZoneId.of("UTC")).toInstant()).seconds
+        repeat(TRIALS * 20) {
+            val instant = first.plusSeconds((random.nextDouble() * spanSeconds).toLong())
+            val sample = sample(instant, ZONES[random.nextInt(ZONES.size)])
+            assertEquals("${sample.session}", sample.day, SessionAggregates.epochDay(sample.session))
+        }
+    }
+    
+    @Test
+    fun epochDayAroundDstTransitions() {
+        for (zone in ZONES) {
+            val rules = zone.rules
+            var transition = rules.nextTransition(ANCHORS.first().atStartOfDay(zone).toInstant())
+            while (transition != null && transition.instant.isBefore(END)) {
+                // Every few minutes through the two hours either side of the change
+                for (minutes in -120..120 step 7) {
+                    val sample = sample(transition.instant.plusSeconds(minutes * 60L), zone)
+                    assertEquals("$zone $transition", sample.day, SessionAggregates.epochDay(sample.session))
+                }
+                // Either side of midnight on the days of the change
+                val date = transition.dateTimeBefore.toLocalDate()
+                for (day in datesThrough(date.minusDays(1), date.plusDays(1))) {
+                    val midnight = day.atStartOfDay(zone).toInstant()
+                    for (seconds in longArrayOf(-1, 0, 1)) {
+                        val sample = sample(midnight.plusSeconds(seconds), zone)
+                        assertEquals("$zone $day", sample.day, SessionAggregates.epochDay(sample.session))
+                    }
+                }
+                transition = rules.nextTransition(transition.instant)
+            }
+        }
+    }
+    
+    @Test
+    fun unknownOffsetFallsBackToDeviceZone() {
+        val saved = TimeZone.getDefault()
+        try {
+            for (zone in ZONES) {
+                TimeZone.setDefault(TimeZone.getTimeZone(zone))
+                repeat(TRIALS) {
+                    val instant = randomInstant()
+                    assertEquals(zone.rules.getOffset(instant).totalSeconds, SessionAggregates.zoneOffsetSeconds(instant.toEpochMilli()))
+                    val session = completed(instant, minutes = 10, zoneOffsetSeconds = SessionData.UNKNOWN_ZONE_OFFSET)
+                    assertEquals("$zone $instant", instant.atZone(zone).toLocalDate().toEpochDay(), SessionAggregates.epochDay(session))
+                }
+            }
+        } finally {
+            TimeZone.setDefault(saved)
+        }
+    }
+    
+    @Test
+    fun travellingUserMatchesReference() {
+        repeat(TRIALS) {
+            val samples = itinerary()
+            val aggregates = newAggregates()
+            // In start order, which differs from day order after a flight west over the date line
+            samples.sortedBy { it.session.startTime }.forEach { aggregates.record(it.session) }
+            checkAgainstReference(aggregates, samples)
+        }
+    }
+    
+    @Test
+    fun rebuildWithImportedSessionsOutOfOrder() {
+        repeat(TRIALS) {
+            val samples = itinerary()
+            // The log holds recent history first and imported, older sessions after it
+            val split = random.nextInt(samples.size + 1)
+            val byStart = samples.sortedBy { it.session.startTime }
+            val logOrder = byStart.subList(split, byStart.size) + byStart.subList(0, split).shuffled(random)
+            
+            val aggregates = newAggregates()
+            byStart.subList(split, byStart.size).forEach { aggregates.record(it.session) }
+            aggregates.rebuild(logOrder.size) { action -> logOrder.forEach { action(it.session) } }
+            checkAgainstReference(aggregates, samples)
+            
+            val shuffled = samples.shuffled(random)
+            aggregates.rebuild(shuffled.size) { action -> shuffled.forEach { action(it.session) } }
+            checkAgainstReference(aggregates, samples)
+            
+            aggregates.rebuild(shuffled.map { it.session })
+            checkAgainstReference(aggregates, samples)
+        }
+    }
+    
+    private fun checkAgainstReference(aggregates: SessionAggregates, samples: List<Sample>) {
+        val minutesByDay = HashMap<Long, Int>()
+        for (sample in samples) {
+            minutesByDay[sample.day] = (minutesByDay[sample.day] ?: 0) + sample.session.durationMinutes
+        }
+        val days = minutesByDay.keys
+        val message = samples.joinToString { "${it.day}@${it.session.zoneOffsetSeconds}" }
+        
+        assertEquals(message, samples.size, aggregates.totalSessions)
+        assertEquals(message, samples.sumOf { it.session.durationMinutes }, aggregates.totalMinutes)
+        assertEquals(message, DayRuns.longest(days), aggregates.longestStreak)
+        if (days.isEmpty()) return
+        
+        val firstDay = days.minOrNull()!! - 1
+        val lastDay = days.maxOrNull()!!
+        val dayCount = (lastDay + 2 - firstDay).toInt()
+        val expected = IntArray(dayCount) { minutesByDay[firstDay + it] ?: 0 }
+        assertEquals(message, expected.toList(), aggregates.minutesBetween(firstDay, dayCount).toList())
+        for (day in firstDay until firstDay + dayCount) {
+            assertEquals(message, minutesByDay[day] ?: 0, aggregates.minutesOnDay(day))
+        }
+        for (today in lastDay..lastDay + 2) {
+            assertEquals(message, DayRuns.current(days, today), aggregates.currentStreak(today))
+        }
+    }
+    
+    /**
+     * Sessions of a user practicing on random days from one of [ANCHORS], often late at
+     * night or just after midnight, who moves to another zone now and then
+     */
+    private fun itinerary(): List<Sample> {
+        val start = ANCHORS[random.nextInt(ANCHORS.size)].plusDays(random.nextInt(7).toLong() - 3)
+        val span = 1 + random.nextInt(MAX_SPAN_DAYS)
+        var zone = ZONES[random.nextInt(ZONES.size)]
+        val samples = ArrayList<Sample>()
+        for (offset in 0 until span) {
+            if (random.nextInt(4) == 0) continue
+            if (random.nextInt(5) == 0) zone = ZONES[random.nextInt(ZONES.size)]
+            val date = start.plusDays(offset.toLong())
+            repeat(1 + random.nextInt(2)) {
+                samples.add(sample(ZonedDateTime.of(date, randomLocalTime(), zone).toInstant(), zone))
+            }
+        }
+        return samples
+    }
+    
+    private fun randomLocalTime(): LocalTime {
+        // Half of all sessions within half an hour of midnight, where a wrong zone changes the day
+        val secondOfDay = if (random.nextBoolean()) {
+            Math.floorMod(random.nextInt(NEAR_MIDNIGHT_SECONDS * 2) - NEAR_MIDNIGHT_SECONDS, SECONDS_PER_DAY)
+        } else {
+            random.nextInt(SECONDS_PER_DAY)
+        }
+        return LocalTime.ofSecondOfDay(secondOfDay.toLong())
+    }
+    
+    private fun randomInstant(): Instant {
+        val date = ANCHORS[random.nextInt(ANCHORS.size)].plusDays(random.nextInt(40).toLong())
+        return date.atStartOfDay(ZoneId.of("UTC")).toInstant().plusSeconds(random.nextInt(SECONDS_PER_DAY).toLong())
+    }
+    
+    private fun sample(instant: Instant, zone: ZoneId): Sample {
+        val session = completed(instant, 1 + random.nextInt(45), zone.rules.getOffset(instant).totalSeconds)
+        return Sample(session, instant.atZone(zone).toLocalDate().toEpochDay())
+    }
+    
+    private fun completed(instant: Instant, minutes: Int, zoneOffsetSeconds: Int): SessionData {
+        val startTime = instant.toEpochMilli()
+        return SessionData(
+            id = UUID(random.nextLong(), random.nextLong()).toString(),
+            startTime = startTime,
+            durationMinutes = minutes,
+            completed = true,
+            endTime = startTime + TimeUnit.MINUTES.toMillis(minutes.toLong()),
+            zoneOffsetSeconds = zoneOffsetSeconds,
+            activeSeconds = minutes * 60
+        )
+    }
+    
+    private fun newAggregates(): SessionAggregates = SessionAggregates(folder.newFile().apply { delete() })
+    
+    private fun datesThrough(first: LocalDate, last: LocalDate): List<LocalDate> {
+        return generateSequence(first) { it.plusDays(1) }.takeWhile { !it.isAfter(last) }.toList()
+    }
+    
+    companion object {
+        private const val SEED = 20241027L
+        private const val TRIALS = 200
+        private const val MAX_SPAN_DAYS = 45
+        private const val SECONDS_PER_DAY = 24 * 60 * 60
+        private const val NEAR_MIDNIGHT_SECONDS = 30 * 60
+        
+        private val ZONES = listOf(
+            "UTC",
+            "America/New_York",
+            "America/St_Johns",
+            "America/Santiago",
+            "Europe/London",
+            "Europe/Berlin",
+            "Asia/Kolkata",
+            "Asia/Kathmandu",
+            "Australia/Lord_Howe",
+            "Pacific/Kiritimati",
+            "Pacific/Pago_Pago"
+        ).map { ZoneId.of(it) }
+        
+        // Around year ends and the spring and autumn changes of both hemispheres
+        private val ANCHORS = listOf(
+            LocalDate.of(2023, 12, 20),
+            LocalDate.of(2024, 3, 5),
+            LocalDate.of(2024, 3, 28),
+            LocalDate.of(2024, 9, 1),
+            LocalDate.of(2024, 10, 20),
+            LocalDate.of(2024, 12, 24)
+        )
+        
+        private val END: Instant = ANCHORS.last().plusDays(60).atStartOfDay(ZoneId.of("UTC")).toInstant()
+    }
+}
@@ -0,0 +1,123 @@
+package com.didi.breathedeep.data
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.Random
+
+/**
+ * Checks [StreakEngine] against a brute-force scan of the same days, over random day sets
+ * added in order, shuffled and with gaps filled in afterwards. Days straddle a
+ * [DayOccupancyIndex] block boundary so the backfill scans cross blocks.
+ */
+class StreakEngineTest {
+    
+    private val random = Random(SEED)
+    
+    @Test
+    fun daysInOrderMatchReference() {
+        repeat(TRIALS) {
+            val days = randomDays().sorted()
+            checkAgainstReference(days)
+        }
+    }
+    
+    @Test
+    fun daysOutOfOrderMatchReference() {
+        repeat(TRIALS) {
+            val days = randomDays().shuffled(random)
+            checkAgainstReference(days)
+        }
+    }
+    
+    @Test
+    fun filledGapsJoinRuns() {
+        repeat(TRIALS) {
+            val all = randomDays().distinct().sorted()
+            // Every other day first, in order, then the ones in between in random order
+            val first = all.filterIndexed { i, _ -> i % 2 == 0 }
+            val gaps = all.filterIndexed { i, _ -> i % 2 == 1 }.shuffled(random)
+            checkAgainstReference(first + gaps)
+        }
+    }
+    
+    @Test
+    fun backfillBeforeLastDayKeepsCurrentRun() {
+        val days = DayOccupancyIndex()
+        val engine = StreakEngine(days)
+        for (day in listOf(BASE + 10, BASE + 11, BASE + 12, BASE + 5, BASE + 4)) {
+            add(days, engine, day)
+        }
+        assertEquals(BASE + 12, engine.lastDay)
+        assertEquals(3, engine.runLength)
+        assertEquals(3, engine.longest)
+        
+        // Joins the older run onto the current one
+        for (day in BASE + 6..BASE + 9) {
+            add(days, engine, day)
+        }
+        assertEquals(9, engine.runLength)
+        assertEquals(9, engine.longest)
+    }
+    
+    @Test
+    fun currentStreakLapsesAfterAMissedDay() {
+        val days = DayOccupancyIndex()
+        val engine = StreakEngine(days)
+        assertEquals(0, engine.currentStreak(BASE))
+        for (day in BASE..BASE + 2) {
+            add(days, engine, day)
+        }
+        assertEquals(3, engine.currentStreak(BASE + 2))
+        assertEquals(3, engine.currentStreak(BASE + 3))
+        assertEquals(0, engine.currentStreak(BASE + 4))
+    }
+    
+    private fun checkAgainstReference(order: List<Long>) {
+        val days = DayOccupancyIndex()
+        val engine = StreakEngine(days)
+        val seen = HashSet<Long>()
+        for ((step, day) in order.withIndex()) {
+            add(days, engine, day)
+            seen.add(day)
+            val message = "after ${step + 1} of $order"
+            val lastDay = seen.maxOrNull()!!
+            assertEquals(message, lastDay, engine.lastDay)
+            assertEquals(message, DayRuns.endingOn(seen, lastDay), engine.runLength)
+            assertEquals(message, DayRuns.longest(seen), engine.longest)
+            for (today in lastDay..lastDay + 2) {
+                assertEquals(message, DayRuns.current(seen, today), engine.currentStreak(today))
+            }
+        }
+    }
+    
+    /**
+     * Marks a day the way [SessionAggregates] does: the engine only hears about newly occupied days
+     */
+    private fun add(days: DayOccupancyIndex, engine: StreakEngine, day: Long) {
+        val newDay = !days.isOccupied(day)
+        days.add(day, MINUTES)
+        if (newDay) {
+            engine.onDayAdded(day)
+        }
+    }
+    
+    /**
+     * Clustered days with repeats, so that runs of several days and gaps of one both come up
+     */
+    private fun randomDays(): List<Long> {
+        val count = 1 + random.nextInt(MAX_DAYS)
+        val span = 1 + random.nextInt(MAX_SPAN)
+        return List(count) { BASE + random.nextInt(span) }
+    }
+    
+    companion object {
+        private const val SEED = 20240611L
+        private const val TRIALS = 500
+        private const val MAX_DAYS = 60
+        private const val MAX_SPAN = 80
+        private const val MINUTES = 10
+        
+        // Close below a 512-day block boundary, so runs cross into the next block
+        private const val BASE = 20_480L - 40
+    }
+}
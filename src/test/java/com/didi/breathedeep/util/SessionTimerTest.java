@@ -0,0 +1,191 @@
+package com.didi.breathedeep.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.Random
+import java.util.concurrent.TimeUnit
+
+/**
+ * Drives [SessionTimer] with a fake clock and scheduler, so callbacks can be made late
+ * and pauses placed anywhere without waiting in real time.
+ */
+class SessionTimerTest {
+    
+    private val clock = FakeClock()
+    private val scheduler = FakeScheduler(clock)
+    private val listener = RecordingListener(clock)
+    
+    @Test
+    fun accumulatesActiveTimeAcrossPauses() {
+        val timer = SessionTimer(60_000L, listener, clock, scheduler)
+        timer.start()
+        scheduler.advanceBy(10_000L)
+        timer.pause()
+        assertEquals(10_000L, timer.elapsedMillis())
+        
+        // Paused time does not count
+        scheduler.advanceBy(50_000L)
+        assertEquals(10_000L, timer.elapsedMillis())
+        
+        timer.start()
+        scheduler.advanceBy(5_000L)
+        assertEquals(15_000L, timer.elapsedMillis())
+        assertEquals(45_000L, timer.remainingMillis())
+        
+        timer.pause()
+        timer.pause()
+        scheduler.advanceBy(1_000L)
+        timer.start()
+        scheduler.advanceBy(45_000L)
+        assertTrue(timer.isFinished)
+        assertEquals(60_000L, timer.elapsedMillis())
+        assertEquals(listOf(111_000L), listener.finishedAt)
+    }
+    
+    @Test
+    fun ticksWhenTheRemainingWholeSecondChanges() {
+        val timer = SessionTimer(10_500L, listener, clock, scheduler)
+        timer.start()
+        scheduler.advanceTo(3_250L)
+        // At start, then on each whole second crossed
+        assertEquals(listOf(0L to 10_500L, 500L to 10_000L, 1_500L to 9_000L, 2_500L to 8_000L), listener.seconds)
+        
+        timer.pause()
+        scheduler.advanceBy(10_000L)
+        listener.seconds.clear()
+        timer.start()
+        scheduler.advanceBy(1_500L)
+        assertEquals(listOf(13_250L to 7_250L, 13_500L to 7_000L, 14_500L to 6_000L), listener.seconds)
+        
+        scheduler.advanceBy(60_000L)
+        assertEquals(listOf(20_500L), listener.finishedAt)
+        assertTrue(listener.seconds.all { (_, remaining) -> remaining > 0L })
+    }
+    
+    @Test
+    fun thirtyMinuteSessionEndsOnTimeDespiteLateTicks() {
+        val random = Random(SEED)
+        repeat(TRIALS) {
+            val clock = FakeClock()
+            val scheduler = FakeScheduler(clock)
+            val listener = RecordingListener(clock)
+            // Display ticks run up to 40 ms late, the finish callback up to 2 ms late
+            scheduler.lateness = { delay -> if (delay <= 1_000L) random.nextInt(41).toLong() else random.nextInt(3).toLong() }
+            
+            val duration = TimeUnit.MINUTES.toMillis(30)
+            val timer = SessionTimer(duration, listener, clock, scheduler)
+            var paused = 0L
+            timer.start()
+            while (!timer.isFinished) {
+                scheduler.advanceBy(1L + random.nextInt(5 * 60_000))
+                // Not in the last second, where the reposted finish would count as a late tick here
+                if (!timer.isFinished && timer.remainingMillis() > 1_000L && random.nextInt(3) == 0) {
+                    timer.pause()
+                    val pause = 1L + random.nextInt(60_000)
+                    scheduler.advanceBy(pause)
+                    paused += pause
+                    timer.start()
+                }
+            }
+            
+            assertEquals(1, listener.finishedAt.size)
+            val lateBy = listener.finishedAt[0] - (duration + paused)
+            assertTrue("finished $lateBy ms from target", lateBy in 0L..FINISH_TOLERANCE_MILLIS)
+            assertEquals(duration, timer.elapsedMillis())
+            
+            // However late the ticks, the countdown shown only ever falls
+            var previous = Long.MAX_VALUE
+            for ((_, remaining) in listener.seconds) {
+                assertTrue(remaining <= previous)
+                previous = remaining
+            }
+        }
+    }
+    
+    @Test
+    fun pauseAndResumeRepostTheSameCallbacks() {
+        val timer = SessionTimer(TimeUnit.MINUTES.toMillis(30), listener, clock, scheduler)
+        timer.start()
+        repeat(100) {
+            scheduler.advanceBy(1_234L)
+            timer.pause()
+            scheduler.advanceBy(567L)
+            timer.start()
+        }
+        // One tick and one finish callback, however often the session is paused
+        assertEquals(2, scheduler.posted.size)
+    }
+    
+    private class FakeClock : SessionTimer.Clock {
+        var now = 0L
+        
+        override fun elapsedRealtime(): Long = now
+    }
+    
+    /**
+     * Runs posted callbacks when the fake clock passes their due time, optionally late
+     */
+    private class FakeScheduler(private val clock: FakeClock) : SessionTimer.Scheduler {
+        
+        private class Task(val runAt: Long, val runnable: Runnable)
+        
+        private val tasks = ArrayList<Task>()
+        
+        /**
+         * Every distinct callback ever posted, by identity
+         */
+        val posted: MutableSet<Runnable> = Collections.newSetFromMap(IdentityHashMap())
+        
+        /**
+         * How late a callback posted with a given delay runs
+         */
+        var lateness: (delayMillis: Long) -> Long = { 0L }
+        
+        override fun postDelayed(runnable: Runnable, delayMillis: Long) {
+            posted.add(runnable)
+            tasks.add(Task(clock.now + delayMillis + lateness(delayMillis), runnable))
+        }
+        
+        override fun removeCallbacks(runnable: Runnable) {
+            tasks.removeAll { it.runnable === runnable }
+        }
+        
+        /**
+         * Runs every callback due by [time] in due order, moving the clock to each one
+         */
+        fun advanceTo(time: Long) {
+            while (true) {
+                val next = tasks.minByOrNull { it.runAt } ?: break
+                if (next.runAt > time) break
+                tasks.remove(next)
+                clock.now = next.runAt
+                next.runnable.run()
+            }
+            clock.now = time
+        }
+        
+        fun advanceBy(millis: Long) = advanceTo(clock.now + millis)
+    }
+    
+    private class RecordingListener(private val clock: FakeClock) : SessionTimer.Listener {
+        val seconds = ArrayList<Pair<Long, Long>>()
+        val finishedAt = ArrayList<Long>()
+        
+        override fun onSecond(remainingMillis: Long) {
+            seconds.add(clock.now to remainingMillis)
+        }
+        
+        override fun onFinish() {
+            finishedAt.add(clock.now)
+        }
+    }
+    
+    companion object {
+        private const val SEED = 30L
+        private const val TRIALS = 50
+        private const val FINISH_TOLERANCE_MILLIS = 3L
+    }
+}